@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end delivery to an NSCA daemon on loopback. The queue blocks when it is full, so the throughput of
+ * <code>send()</code> converges on the rate at which messages are delivered rather than the rate at which they are
+ * queued. Use JMH's <code>-t</code> option to vary the number of sending threads. */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryBenchmark {
+    @Param({"16", "511"})
+    int messageLength;
+
+    @Param({"1", "4"})
+    int deliveryConcurrency;
+
+    @Param({"executor", "nio"})
+    String deliveryEngine;
+
+    private NscaSink sink;
+    private Nsca channel;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sink = new NscaSink();
+        channel = new Nsca("nsca { nscaHost = localhost \n nscaPort = " + sink.getPort() + " \n nscaService = benchmark \n" +
+                " deliveryEngine = " + deliveryEngine + " \n deliveryConcurrency = " + deliveryConcurrency + " \n" +
+                " overflowPolicy = block \n overflowBlockTimeout = 60000 \n metricsRegistry = none }");
+        char[] chars = new char[messageLength];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+    }
+
+    /** Keeps the backlog of one iteration from being delivered during the next */
+    @TearDown(Level.Iteration)
+    public void drain() throws Exception {
+        channel.flush(Duration.ofSeconds(60));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+        sink.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void send() throws Exception {
+        channel.send(Nsca.NagiosMsgLevel.WARN, message);
+    }
+
+    /** Time from <code>sendAsync()</code> until the message has been written to the daemon's socket */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DeliveryResult roundTrip() throws Exception {
+        return channel.sendAsync(Nsca.NagiosMsgLevel.WARN, message).get();
+    }
+}
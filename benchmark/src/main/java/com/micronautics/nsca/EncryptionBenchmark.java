@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of encrypting one packet, through the public <code>encryptBuffer()</code> and through the per-connection
+ * encryptor that the sender reuses */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+    @Param({"NONE", "XOR"})
+    Nsca.Encryption encryption;
+
+    @Param({"0", "8", "32", "128"})
+    int passwordLength;
+
+    private Nsca channel;
+    private NscaEncryptor encryptor;
+    private final byte[] encryptionVector = new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE];
+    private final byte[] packet = new byte[Nsca.PACKET_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(packet);
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        random.nextBytes(encryptionVector);
+        random.nextBytes(packet);
+        char[] password = new char[passwordLength];
+        Arrays.fill(password, 'p');
+        channel = new Nsca("localhost", 5667, "benchmark", encryption, new String(password));
+        encryptor = channel.newEncryptor(encryptionVector);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.close();
+    }
+
+    @Benchmark
+    public byte[] encryptBuffer() throws Exception {
+        channel.encryptBuffer(encryption, packet, encryptionVector);
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer reusedEncryptor() throws Exception {
+        encryptor.encrypt(buffer, 0, Nsca.PACKET_SIZE);
+        return buffer;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Minimal NSCA daemon on loopback for the delivery benchmark: sends the handshake, then reads and counts packets
+ * without decoding them, so that the benchmark measures the client */
+class NscaSink implements Runnable {
+    private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    private final AtomicLong bytes = new AtomicLong();
+
+    NscaSink() throws IOException {
+        Thread acceptor = new Thread(this, "nsca-sink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() { return serverSocket.getLocalPort(); }
+
+    long getPacketCount() { return bytes.get() / Nsca.PACKET_SIZE; }
+
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                Thread reader = new Thread(new Runnable() {
+                    public void run() { serve(socket); }
+                }, "nsca-sink-connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE]);
+            out.writeInt((int) (System.currentTimeMillis() / 1000L));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) >= 0)
+                bytes.addAndGet(count);
+        } catch (IOException e) {
+            // the client closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+}
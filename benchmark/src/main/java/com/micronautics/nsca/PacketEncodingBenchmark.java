@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of building NSCA packets the way the sender does before each write, without any I/O */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketEncodingBenchmark {
+    @Param({"16", "128", "511"})
+    int messageLength;
+
+    @Param({"1", "100"})
+    int batchSize;
+
+    private Nsca channel;
+    private NscaPacketEncoder encoder;
+    private NscaEncryptor encryptor;
+    private NscaBatch batch;
+    private ByteBuffer buffer;
+    private String message;
+    private final int serverTime = (int) (System.currentTimeMillis() / 1000L);
+
+    @Setup
+    public void setup() throws Exception {
+        channel = new Nsca("nsca { nscaHost = localhost \n nscaPort = 5667 \n nscaService = benchmark \n metricsRegistry = none }");
+        encoder = channel.newPacketEncoder();
+        encryptor = channel.newEncryptor(new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE]);
+        char[] chars = new char[messageLength];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+        batch = new NscaBatch(batchSize);
+        for (int i = 0; i < batchSize; i++)
+            batch.add(Nsca.NagiosMsgLevel.WARN, message, null);
+        buffer = ByteBuffer.allocate(batchSize * Nsca.PACKET_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.close();
+    }
+
+    /** A single packet: fields, padding and CRC32 */
+    @Benchmark
+    public ByteBuffer encodePacket() {
+        buffer.clear();
+        encoder.encode(Nsca.NagiosMsgLevel.WARN, message, serverTime, buffer);
+        return buffer;
+    }
+
+    /** A whole batch, encoded and encrypted into the send buffer as NscaSendRunnable does before writing it */
+    @Benchmark
+    public ByteBuffer encodeBatch() throws Exception {
+        channel.encodeBatch(batch, encoder, serverTime, encryptor, buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,11 @@
+import sbt._
+import Keys._
+
+/** The library is the root project, configured by build.sbt; the JMH benchmarks live in their own project so that
+ * neither JMH nor its generated code end up in the published artifact. Run them with
+ * <code>sbt "project benchmark" run</code>; arguments after <code>run</code> are passed to JMH. */
+object PushToNagiosBuild extends Build {
+  lazy val root = Project("PushToNagios", file("."))
+
+  lazy val benchmark = Project("benchmark", file("benchmark")) dependsOn(root)
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * JCE implementation of the libmcrypt block ciphers that NSCA runs in 8 bit CFB mode. As in the daemon, the key is
+ * the password truncated or zero-padded to the key size of the algorithm, the initialization vector is the first
+ * block of the vector received from the server, and the cipher is initialized once per connection so that its
+ * feedback state carries over from one packet to the next. */
+class CipherEncryptor implements NscaEncryptor {
+    private final Cipher cipher;
+
+    /** @param algorithm JCE algorithm name
+     * @param keySize key size in bytes used by libmcrypt for this algorithm
+     * @param blockSize block size in bytes, which is also the size of the initialization vector */
+    CipherEncryptor(String algorithm, int keySize, int blockSize, byte[] encryptionVector, byte[] password) throws GeneralSecurityException {
+        byte[] key = new byte[keySize];
+        System.arraycopy(password, 0, key, 0, Math.min(password.length, keySize));
+        cipher = Cipher.getInstance(algorithm + "/CFB8/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, algorithm), new IvParameterSpec(encryptionVector, 0, blockSize));
+    }
+
+    public void encrypt(ByteBuffer buffer, int offset, int length) throws GeneralSecurityException {
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + offset;
+        cipher.update(array, start, length, array, start);
+    }
+}
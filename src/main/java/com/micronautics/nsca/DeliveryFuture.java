@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.CompletableFuture;
+
+/** Future returned by <code>sendAsync()</code>; remembers when the message was sent so that latency can be reported */
+class DeliveryFuture extends CompletableFuture<DeliveryResult> {
+    private final long startNanos = System.nanoTime();
+
+    void delivered(int attempts) { finish(DeliveryResult.Status.DELIVERED, attempts, null); }
+
+    void failed(int attempts, Throwable cause) { finish(DeliveryResult.Status.FAILED, attempts, cause); }
+
+    void spooled(int attempts) { finish(DeliveryResult.Status.SPOOLED, attempts, null); }
+
+    void dropped() { finish(DeliveryResult.Status.DROPPED, 0, null); }
+
+    void coalesced() { finish(DeliveryResult.Status.COALESCED, 0, null); }
+
+    private void finish(DeliveryResult.Status status, int attempts, Throwable cause) {
+        complete(new DeliveryResult(status, System.nanoTime() - startNanos, attempts, cause));
+    }
+}
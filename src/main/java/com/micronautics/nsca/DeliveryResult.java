@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/**
+ * Outcome of one message sent with {@link Nsca#sendAsync(Nsca.NagiosMsgLevel, String)}. Failures are reported through
+ * the status and cause rather than by completing the future exceptionally, so that latency and attempts are always
+ * available. */
+public class DeliveryResult {
+    public enum Status {
+        /** Written to the NSCA server */
+        DELIVERED,
+        /** Could not be written; see {@link DeliveryResult#getCause()} */
+        FAILED,
+        /** Not written yet; stored in the channel's spool, from which it is replayed once the server is reachable */
+        SPOOLED,
+        /** Discarded by the channel's overflow policy because its queue was full */
+        DROPPED,
+        /** Suppressed by coalescing because an identical message was sent recently */
+        COALESCED
+    }
+
+    private final Status status;
+    private final long latencyNanos;
+    private final int attempts;
+    private final Throwable cause;
+
+    DeliveryResult(Status status, long latencyNanos, int attempts, Throwable cause) {
+        this.status = status;
+        this.latencyNanos = latencyNanos;
+        this.attempts = attempts;
+        this.cause = cause;
+    }
+
+    public Status getStatus() { return status; }
+
+    public boolean isDelivered() { return status==Status.DELIVERED; }
+
+    /** @return nanoseconds from <code>sendAsync()</code> until the message was written, or the outcome was known */
+    public long getLatencyNanos() { return latencyNanos; }
+
+    /** @return number of times delivery was attempted; a write retried on a fresh connection counts twice */
+    public int getAttempts() { return attempts; }
+
+    /** @return reason for a FAILED delivery, otherwise null */
+    public Throwable getCause() { return cause; }
+
+    @Override
+    public String toString() {
+        return "DeliveryResult(" + status + ", " + latencyNanos / 1000 + "us, " + attempts + " attempt(s)" +
+                (cause==null ? "" : ", " + cause) + ")";
+    }
+}
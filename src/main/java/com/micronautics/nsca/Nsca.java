@@ -21,18 +21,34 @@ import com.typesafe.config.ConfigFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Java native equivalent to nsca_send program. It can encrypt and send alerts to the NSCA server. Example usage:
@@ -47,15 +63,51 @@ import java.util.zip.CRC32;
  * @author <a href="mailto:jarlyons@gmail.com">Jar Lyons</a> Original Java version, packaged with log4j/MDC
  * @author <a href="mailto:mslinn@micronauticsresearch.com">Mike Slinn</a> standalone version, packaged with SBT and converted to use HOCON */
 public class Nsca {
-    private static final int INITIALIZATION_VECTOR_SIZE = 128;
+    /** Size of an NSCA version 3 data packet: 4 ints followed by 3 strings, padded to a 4 byte boundary */
+    static final int PACKET_SIZE = NscaPacketEncoder.PACKET_SIZE;
 
-    public enum Encryption {
-        NONE(0), XOR(1);
+    /** Encryption methods, numbered as in the NSCA daemon's nsca.cfg. Each built in method is also the
+     * {@link NscaEncryptor.Provider} for its encryptors. RIJNDAEL-192 and RIJNDAEL-256 use block sizes that the JCE
+     * does not provide, so they are recognized but cannot be used. */
+    public enum Encryption implements NscaEncryptor.Provider {
+        NONE(0), XOR(1), DES(2, "DES", 8, 8), TRIPLE_DES(3, "DESede", 24, 8), BLOWFISH(8, "Blowfish", 56, 8),
+        RIJNDAEL_128(14, "AES", 32, 16), RIJNDAEL_192(15), RIJNDAEL_256(16);
 
         private int value;
 
+        /** JCE algorithm, or null if the JCE does not provide it */
+        private String algorithm;
+
+        /** Key size and block size used by libmcrypt, in bytes */
+        private int keySize;
+        private int blockSize;
+
         private Encryption(int v) { value = v; }
 
+        private Encryption(int v, String algorithm, int keySize, int blockSize) {
+            value = v;
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+            this.blockSize = blockSize;
+        }
+
+        public int getValue() { return value; }
+
+        public NscaEncryptor newEncryptor(byte[] encryptionVector, byte[] password) throws GeneralSecurityException {
+            switch (this) {
+                case NONE:
+                    return NO_ENCRYPTION;
+
+                case XOR:
+                    return new XorEncryptor(encryptionVector, password, PACKET_SIZE);
+
+                default:
+                    if (algorithm==null)
+                        throw new NoSuchAlgorithmException("Nsca: unsupported encryption method: " + this);
+                    return new CipherEncryptor(algorithm, keySize, blockSize, encryptionVector, password);
+            }
+        }
+
         public static Encryption parse(int v) {
             for (Encryption value : values())
                 if (value.value==v)
@@ -65,6 +117,10 @@ public class Nsca {
         }
     }
 
+    private static final NscaEncryptor NO_ENCRYPTION = new NscaEncryptor() {
+        public void encrypt(ByteBuffer buffer, int offset, int length) { }
+    };
+
     public enum NagiosMsgLevel {
         NO_MSG(-1), OK(0), WARN(1), CRITICAL(2), UNKNOWN(3);
 
@@ -72,6 +128,8 @@ public class Nsca {
 
         private NagiosMsgLevel(int v) { value = v; }
 
+        public int getValue() { return value; }
+
         public static NagiosMsgLevel parse(int v) {
             for (NagiosMsgLevel value : values())
                 if (value.value==v)
@@ -81,25 +139,143 @@ public class Nsca {
         }
     }
 
-    /** Shared amongst all instances */
+    /** What <code>send()</code> does when the channel's queue is full */
+    public enum OverflowPolicy {
+        /** Discard the message being sent */
+        DROP_NEWEST,
+        /** Discard the oldest queued message to make room */
+        DROP_OLDEST,
+        /** Wait up to <code>overflowBlockTimeout</code> milliseconds for room, then discard the message being sent */
+        BLOCK,
+        /** Keep only the latest overflowing message of each service and level; it is delivered after the queued messages */
+        OVERWRITE;
+
+        /** Accepts names such as <code>DROP_OLDEST</code>, <code>drop_oldest</code> or <code>dropOldest</code> */
+        public static OverflowPolicy parse(String v) {
+            for (OverflowPolicy value : values())
+                if (value.name().replace("_", "").equalsIgnoreCase(v.replace("_", "")))
+                    return value;
+            logger.warn("Invalid overflow policy: '" + v + "'; using DROP_NEWEST");
+            return DROP_NEWEST;
+        }
+    }
+
+    /** How connections are spread across the servers listed in <code>nscaServers</code> */
+    public enum LoadBalancing {
+        /** Each new connection goes to the next healthy server */
+        ROUND_ROBIN,
+        /** Each new connection goes to the healthy server with the fewest open connections from this process */
+        LEAST_OUTSTANDING;
+
+        /** Accepts names such as <code>LEAST_OUTSTANDING</code> or <code>leastOutstanding</code> */
+        public static LoadBalancing parse(String v) {
+            for (LoadBalancing value : values())
+                if (value.name().replace("_", "").equalsIgnoreCase(v.replace("_", "")))
+                    return value;
+            logger.warn("Invalid load balancing strategy: '" + v + "'; using ROUND_ROBIN");
+            return ROUND_ROBIN;
+        }
+    }
+
+    /** Mechanism used to deliver messages to the NSCA server */
+    public enum DeliveryEngine {
+        /** Blocking sockets driven by the shared thread pool */
+        EXECUTOR,
+        /** Non-blocking sockets multiplexed over a few selector threads */
+        NIO,
+        /** Blocking sockets, each delivery running on its own virtual thread (Java 21 or later) */
+        VIRTUAL;
+
+        public static DeliveryEngine parse(String v) {
+            for (DeliveryEngine value : values())
+                if (value.name().equalsIgnoreCase(v))
+                    return value;
+            logger.warn("Invalid delivery engine: '" + v + "'; using EXECUTOR");
+            return EXECUTOR;
+        }
+    }
+
+    /** Where check results are delivered */
+    public enum Transport {
+        /** Over the network to an NSCA daemon */
+        NSCA,
+        /** As external commands written to the Nagios command file (named pipe) on this host */
+        COMMAND_FILE,
+        /** As check result files written to the Nagios check result directory on this host */
+        CHECK_RESULT_DIRECTORY;
+
+        /** Accepts the names in any case, with or without underscores, and "checkResultDir" */
+        public static Transport parse(String v) {
+            String name = v.replace("_", "");
+            if (name.equalsIgnoreCase("checkResultDir"))
+                return CHECK_RESULT_DIRECTORY;
+            for (Transport value : values())
+                if (value.name().replace("_", "").equalsIgnoreCase(name))
+                    return value;
+            logger.warn("Invalid transport: '" + v + "'; using NSCA");
+            return NSCA;
+        }
+    }
+
+    private static final String CLASS_NAME = "%className%";
+    private static final String PACKAGE_NAME = "%packageName%";
+
+    /** Contents of application.conf and nsca.conf, read from the classpath once */
+    private static String applicationConf;
+    private static String nscaConf;
+
+    /** application.conf layered over nsca.conf, parsed once; keyed by "package#class" if the files contain
+     * substitutions, otherwise there is a single entry with an empty key */
+    private static final ConcurrentMap<String, Config> baseConfigs = new ConcurrentHashMap<String, Config>();
+
+    /** Channels created by {@link #getChannel(String, Class)}, keyed by their resolved settings */
+    private static final ConcurrentMap<Config, Nsca> channels = new ConcurrentHashMap<Config, Nsca>();
+
+    /** Key of this channel in <code>channels</code>; null if it was created with a constructor */
+    private Config registryKey;
+
+    /** Callers of {@link #getChannel(String, Class)} that have not closed this channel yet; 0 once the last one has */
+    private final AtomicInteger users = new AtomicInteger();
+
+    /** Thread pool of the default executor group; shared amongst all instances that use it */
     protected static ThreadPoolExecutor threadPool;
 
-    /** Shared amongst all instances */
+    /** Task queue of the default executor group */
     protected static LinkedBlockingQueue queue;
 
+    /** Shared amongst all instances that use the VIRTUAL delivery engine */
+    private static ExecutorService virtualThreads;
+
     private static Logger logger = LoggerFactory.getLogger(Nsca.class);
 
     private Encryption _encryptionMethod = Encryption.NONE;
 
-    /** NSCA password (optional and only used with XOR) */
+    /** NSCA password (optional; not used with NONE) */
     private String _password = "";
 
+    /** _password encoded once, so that encryption does not have to */
+    private byte[] passwordBytes = new byte[0];
+
+    /** Creates encryptors for new connections; defaults to _encryptionMethod */
+    private NscaEncryptor.Provider encryptionProvider;
+
+    /** Character set used to encode the host, service and message into packets */
+    private Charset charset = Charset.forName("UTF-8");
+
     private int nscaVersion = 3;
 
+    /** Name of the executor group (bulkhead) whose threads deliver this channel's messages with the EXECUTOR engine */
+    private String executorGroup = NscaExecutorGroup.DEFAULT;
+
+    /** Settings of executorGroup, read from <code>executorGroups.&lt;name&gt;</code>; used if this channel creates it */
     private int poolSize = 50;
     private int maxPoolSize = 100;
+    private int poolQueueCapacity = 2000;
     private long keepAliveTime = 10;
 
+    /** Null unless deliveryEngine is EXECUTOR */
+    private NscaExecutorGroup group;
+
     /** Optional message to be sent to Nagios when the appender is instantiated. */
     private String startupMsg = "";
 
@@ -121,10 +297,159 @@ public class Nsca {
     /** Nagios service name to associate with the messages forwarded to NSCA server */
     private String nscaService = "UNSPECIFIED_SERVICE";
 
+    /** "host" or "host:port" of every NSCA server this channel may deliver to; defaults to nscaHost:nscaPort */
+    private List<String> nscaServers;
+
+    private LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+
+    /** Milliseconds for which a resolved server address is reused before DNS is consulted again */
+    private long addressCacheTtl = 60000;
+
+    /** Created once the configuration is known */
+    private NscaServerPool serverPool;
+
+    /** Milliseconds a connection to the NSCA server may sit unused before it is closed and renegotiated */
+    private long connectionIdleTimeout = 60000;
+
+    /** Milliseconds after which a connection is renegotiated, which fetches a fresh initialization vector and time stamp */
+    private long connectionMaxAge = 300000;
+
+    /** Milliseconds to wait for a TCP connection to the NSCA server; <code>timeout</code> only covers reads and writes */
+    private int connectTimeout = 5000;
+
+    /** Consecutive failed connects after which the circuit to the server opens; 0 disables the circuit breaker */
+    private int circuitFailureThreshold = 3;
+
+    /** Milliseconds the circuit first stays open; doubled after each failed probe, and jittered */
+    private long circuitBackoff = 1000;
+
+    /** Upper bound of circuitBackoff */
+    private long circuitMaxBackoff = 60000;
+
+    /** Maximum number of messages that may wait for delivery on this channel; rounded up to a power of two */
+    private int queueCapacity = 2000;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /** Milliseconds that <code>send()</code> waits for room in the queue under the BLOCK overflow policy */
+    private long overflowBlockTimeout = 100;
+
+    /** Maximum number of messages encoded into one write */
+    private int batchMaxCount = 100;
+
+    /** Maximum number of bytes encoded into one write; each message occupies PACKET_SIZE bytes */
+    private int batchMaxBytes = 100 * PACKET_SIZE;
+
+    /** Milliseconds to wait for more messages before writing a partial batch; 0 writes whatever is pending immediately */
+    private long batchLinger = 0;
+
+    /** Milliseconds during which identical messages are collapsed into one; 0 disables coalescing */
+    private long coalesceWindow = 0;
+
+    /** When a coalescing window closes, send one more message ending with "(xN)" if N repeats were suppressed */
+    private boolean coalesceRepeatCount = true;
+
+    /** Only forward a message if its level differs from the last one forwarded, or coalesceWindow has elapsed */
+    private boolean coalesceTransitionsOnly = false;
+
+    /** Number of recent messages remembered for coalescing; rounded up to a power of two */
+    private int coalesceCacheSize = 1024;
+
+    /** Suppresses repeated messages; null unless coalesceWindow or coalesceTransitionsOnly is set */
+    private NscaCoalescer coalescer;
+
+    /** Directory under which undeliverable messages are spooled, in a subdirectory per channel; null disables spooling */
+    private String spoolDirectory;
+
+    /** Number of packets per spool segment file */
+    private int spoolSegmentRecords = 4096;
+
+    /** Spooling stops, and messages are discarded, once this many segments hold messages that await replay */
+    private int spoolMaxSegments = 16;
+
+    /** Milliseconds between forcing spooled messages to disk; 0 leaves it to the operating system */
+    private long spoolSyncInterval = 1000;
+
+    /** Milliseconds between attempts to replay spooled messages while the server is unreachable */
+    private long spoolReplayInterval = 5000;
+
+    /** Store-and-forward journal; null unless spoolDirectory is set */
+    private NscaSpool spool;
+
+    /** "jmx", "none", or the name of a class implementing NscaMetricsRegistry */
+    private String metricsRegistry = "jmx";
+
+    /** One instance of each registry class, keyed by the metricsRegistry setting */
+    private static final Map<String, NscaMetricsRegistry> metricsRegistries = new HashMap<String, NscaMetricsRegistry>();
+
+    private NscaMetrics metrics;
+
+    /** Resolution of the timing wheel that schedules heartbeats, in milliseconds; shared amongst all instances, set by the
+     * first channel that registers a heartbeat */
+    private long heartbeatTick = 100;
+
+    /** Heartbeat of this channel's own service, whose state is updated by each message sent; null if there is none */
+    private volatile NscaHeartbeat heartbeat;
+
+    /** Every heartbeat registered on this channel, cancelled when it is closed; the timing wheel removes cancelled ones */
+    private final Set<NscaHeartbeat> heartbeats = Collections.newSetFromMap(new ConcurrentHashMap<NscaHeartbeat, Boolean>());
+
+    /** Heartbeats of this channel that are due in the current tick; only used by the timing wheel's thread */
+    NscaHeartbeat dueHeartbeats;
+
+    private Transport transport = Transport.NSCA;
+
+    /** Path of the Nagios command file, for the COMMAND_FILE transport */
+    private String commandFile = "/usr/local/nagios/var/rw/nagios.cmd";
+
+    /** Path of the Nagios check result directory, for the CHECK_RESULT_DIRECTORY transport */
+    private String checkResultDirectory = "/usr/local/nagios/var/spool/checkresults";
+
+    /** Shared by the senders; null with the NSCA transport */
+    private NscaResultWriter resultWriter;
+
+    private DeliveryEngine deliveryEngine = DeliveryEngine.EXECUTOR;
+
+    /** Number of selector threads used by the NIO delivery engine; shared amongst all instances, set by the first channel */
+    private int nioThreads = 1;
+
+    /** This channel's state machine within the NIO delivery engine; null when deliveryEngine is EXECUTOR */
+    private NscaNioEngine.Endpoint endpoint;
+
+    /** Messages waiting to be delivered, created once the configuration is known */
+    private NscaQueue pending;
+
+    /** Keep a lane per level and deliver CRITICAL first, instead of one queue in the order messages were sent */
+    private boolean priorityLanes = false;
+
+    /** Consecutive batches that may pass over a non-empty lower-priority lane before it is served first */
+    private int priorityStarvationLimit = 8;
+
+    /** Capacity of each priority lane, indexed by ordinal; lanes that are not configured get queueCapacity */
+    private final int[] laneCapacities = new int[NagiosMsgLevel.values().length];
+
+    /** Maximum number of batches of this channel delivered at once by the EXECUTOR and VIRTUAL engines, each over
+     * its own connection. Messages may be delivered out of order when this is greater than 1. */
+    private int deliveryConcurrency = 1;
+
+    /** One permit per sender that may be queued or running */
+    private Semaphore deliveryPermits;
+
+    /** Senders that are neither queued nor running; there is one for each available permit */
+    private final Queue<NscaSendRunnable> idleSenders = new ConcurrentLinkedQueue<NscaSendRunnable>();
+
+    /** Every sender of this channel, so that their connections can be closed */
+    private final List<NscaSendRunnable> senders = new ArrayList<NscaSendRunnable>();
+
+    /** Monitor on which <code>flush()</code> waits; notified by {@link #idle()} */
+    private final Object flushed = new Object();
+
+    /** Number of threads waiting in <code>flush()</code>, so that senders only take the monitor when someone waits */
+    private volatile int flushWaiters = 0;
 
     public Nsca() throws Exception {
         configure("nsca {}", null);
-        maybeCreateThreadPool();
+        initChannel();
     }
 
     /**
@@ -138,7 +463,7 @@ public class Nsca {
      */
     public Nsca(String strConf) throws Exception {
         configure(strConf, null);
-        maybeCreateThreadPool();
+        initChannel();
     }
 
     /**
@@ -147,7 +472,7 @@ public class Nsca {
      */
     public Nsca(Class caller) throws Exception {
         configure("nsca {}", caller);
-        maybeCreateThreadPool();
+        initChannel();
     }
 
     /**
@@ -162,7 +487,12 @@ public class Nsca {
      */
     public Nsca(String strConf, Class caller) throws Exception {
         configure(strConf, caller);
-        maybeCreateThreadPool();
+        initChannel();
+    }
+
+    private Nsca(Config config) throws Exception {
+        configure(config);
+        initChannel();
     }
 
     /** Set the configuration parameters instead of reading them from the config file; encryption method defaults to none,
@@ -172,7 +502,7 @@ public class Nsca {
     }
 
     /** Set the configuration parameters instead of reading them from the config file.
-     * @param encryptionMethod The new encryption method (0=None, 1=XOR)
+     * @param encryptionMethod The new encryption method
      * @param password must be specified for encryption methods other than None. */
     public Nsca(String host, int port, String service, Encryption encryptionMethod, String password) throws Exception {
         init(host, port, service, encryptionMethod, password);
@@ -188,18 +518,275 @@ public class Nsca {
 
     public String getReportingHost() { return reportingHost; }
 
+    public long getConnectionIdleTimeout() { return connectionIdleTimeout; }
+
+    public long getConnectionMaxAge() { return connectionMaxAge; }
+
+    public int getQueueCapacity() { return queueCapacity; }
+
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+
+    public long getOverflowBlockTimeout() { return overflowBlockTimeout; }
+
+    public boolean getPriorityLanes() { return priorityLanes; }
+
+    public int getPriorityStarvationLimit() { return priorityStarvationLimit; }
+
+    /** @return capacity of the priority lane of <code>msgLevel</code>, before rounding up to a power of two */
+    public int getLaneCapacity(NagiosMsgLevel msgLevel) { return laneCapacities[msgLevel.ordinal()]; }
+
+    /** @return number of messages this channel has discarded because its queue was full */
+    public long getDroppedCount() { return pending.getDroppedCount(); }
+
+    public int getBatchMaxCount() { return batchMaxCount; }
+
+    public int getBatchMaxBytes() { return batchMaxBytes; }
+
+    public long getBatchLinger() { return batchLinger; }
+
+    public long getCoalesceWindow() { return coalesceWindow; }
+
+    public boolean getCoalesceRepeatCount() { return coalesceRepeatCount; }
+
+    public boolean getCoalesceTransitionsOnly() { return coalesceTransitionsOnly; }
+
+    /** @return number of messages suppressed by coalescing */
+    public long getCoalescedCount() { return coalescer==null ? 0 : coalescer.getSuppressedCount(); }
+
+    public DeliveryEngine getDeliveryEngine() { return deliveryEngine; }
+
+    public Transport getTransport() { return transport; }
+
+    public String getCommandFile() { return commandFile; }
+
+    public String getCheckResultDirectory() { return checkResultDirectory; }
+
+    public int getDeliveryConcurrency() { return deliveryConcurrency; }
+
+    public String getExecutorGroup() { return executorGroup; }
+
+    /** @return directory holding this channel's spool, or null if spooling is disabled */
+    public File getSpoolDirectory() { return spool==null ? null : spool.getDirectory(); }
+
+    public int getSpoolSegmentRecords() { return spoolSegmentRecords; }
+
+    public int getSpoolMaxSegments() { return spoolMaxSegments; }
+
+    public long getSpoolSyncInterval() { return spoolSyncInterval; }
+
+    public long getSpoolReplayInterval() { return spoolReplayInterval; }
+
+    public long getHeartbeatTick() { return heartbeatTick; }
+
+    /** @return counters, gauges and latency histograms of this channel */
+    public NscaMetrics getMetrics() { return metrics; }
+
+    public String getMetricsRegistry() { return metricsRegistry; }
+
+    /** @return number of spooled messages that have not been replayed yet */
+    public long getSpooledCount() { return spool==null ? 0 : spool.size(); }
+
+    /** @return number of messages that could not be spooled because the spool was full, or were corrupt on disk */
+    public long getSpoolDiscardedCount() { return spool==null ? 0 : spool.getDiscardedCount(); }
+
+    public int getTimeout() { return timeout; }
+
+    public int getConnectTimeout() { return connectTimeout; }
+
+    public int getCircuitFailureThreshold() { return circuitFailureThreshold; }
+
+    public long getCircuitBackoff() { return circuitBackoff; }
+
+    public long getCircuitMaxBackoff() { return circuitMaxBackoff; }
+
+    /** @return true if connects to every one of this channel's servers are currently refused by circuit breakers */
+    public boolean isCircuitOpen() { return serverPool.isCircuitOpen(); }
+
+    /** @return "host:port" of each server this channel delivers to, separated by commas */
+    public String getNscaServers() { return serverPool.toString(); }
+
+    public LoadBalancing getLoadBalancing() { return loadBalancing; }
+
+    public long getAddressCacheTtl() { return addressCacheTtl; }
+
+    public Charset getCharset() { return charset; }
+
     /** Push the alert to the nagios server. If the server is not present a warning is logged but no exception is raised.
      * @param msgLevel one of NAGIOS_UNKNOWN, NAGIOS_OK, NAGIOS_WARN, or NAGIOS_CRITICAl
      * @param message up to 256 characters long */
     public void send(NagiosMsgLevel msgLevel, String message) throws Exception {
-        logger.debug("send() about to send '" + message + "'");
+        if (logger.isDebugEnabled())
+            logger.debug("send() about to send '" + message + "'");
         if (null == message)
             return;
 
-        NscaSendRunnable nscaSendRunnable = new NscaSendRunnable(msgLevel, message);
+        if (coalescer==null || coalescer.admit(msgLevel, message))
+            enqueue(msgLevel, message, null);
+    }
+
+    /** Push the alert to the nagios server without blocking, and report the outcome.
+     * @return future that is completed with the outcome of the delivery; it never completes exceptionally */
+    public CompletableFuture<DeliveryResult> sendAsync(NagiosMsgLevel msgLevel, String message) {
+        DeliveryFuture future = new DeliveryFuture();
+        if (null == message)
+            future.failed(0, new IllegalArgumentException("message is null"));
+        else if (coalescer==null || coalescer.admit(msgLevel, message))
+            enqueue(msgLevel, message, future);
+        else
+            future.coalesced();
+        return future;
+    }
+
+    /** Re-sends the state of this channel's service every <code>interval</code> milliseconds until the heartbeat is
+     * cancelled, so that passive checks with a freshness threshold stay fresh while nothing changes. Messages sent through
+     * the channel update the state and postpone the next heartbeat; a previous heartbeat for this service is cancelled. */
+    public NscaHeartbeat heartbeat(NagiosMsgLevel msgLevel, String message, long interval) {
+        NscaHeartbeat hb = new NscaHeartbeat(this, nscaService, null, msgLevel, message, interval);
+        NscaHeartbeat previous = heartbeat;
+        heartbeat = hb;
+        if (previous!=null)
+            previous.cancel();
+        register(hb);
+        return hb;
+    }
+
+    /** Re-sends the state of another service of this host every <code>interval</code> milliseconds until the heartbeat
+     * is cancelled. It is delivered over this channel's connections, batched with the channel's other messages; update
+     * its state with {@link NscaHeartbeat#update(NagiosMsgLevel, String)}. */
+    public NscaHeartbeat heartbeat(String service, NagiosMsgLevel msgLevel, String message, long interval) {
+        NscaHeartbeat hb = new NscaHeartbeat(this, service, NscaPacketEncoder.encodeService(service, charset), msgLevel,
+                message, interval);
+        register(hb);
+        return hb;
+    }
+
+    /** Counts events of this channel's service and reports them as one result every <code>window</code> milliseconds
+     * @param label name of the events, used in the output and performance data, such as "errors"
+     * @param warning number of events in a window from which the result is WARN; 0 disables
+     * @param critical number of events in a window from which the result is CRITICAL; 0 disables */
+    public NscaAggregator aggregator(String label, long window, long warning, long critical) {
+        NscaAggregator aggregator = new NscaAggregator(this, nscaService, null, label, window, warning, critical);
+        register(aggregator);
+        return aggregator;
+    }
+
+    /** Counts events of another service of this host and reports them as one result every <code>window</code>
+     * milliseconds, over this channel's connections
+     * @see #aggregator(String, long, long, long) */
+    public NscaAggregator aggregator(String service, String label, long window, long warning, long critical) {
+        NscaAggregator aggregator = new NscaAggregator(this, service, NscaPacketEncoder.encodeService(service, charset),
+                label, window, warning, critical);
+        register(aggregator);
+        return aggregator;
+    }
+
+    private void register(NscaHeartbeat hb) {
+        heartbeats.add(hb);
+        NscaTimingWheel.getInstance(heartbeatTick).register(hb);
+    }
+
+    /** Forgets a cancelled heartbeat; called by the timing wheel when it drops it */
+    void unregister(NscaHeartbeat hb) { heartbeats.remove(hb); }
+
+    /** Waits until every message queued on this channel has been delivered or has failed.
+     * @return false if messages were still pending when the timeout expired */
+    public boolean flush(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (flushed) {
+            flushWaiters++;
+            try {
+                while (!pending.isEmpty() || isBusy()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(flushed, remaining);
+                }
+            } finally {
+                flushWaiters--;
+            }
+        }
+        return true;
+    }
+
+    /** Wakes the threads waiting in <code>flush()</code>; called by a sender or endpoint after it has become idle */
+    void idle() {
+        if (flushWaiters > 0) {
+            synchronized (flushed) {
+                flushed.notifyAll();
+            }
+        }
+    }
+
+    /** @return true while a batch of this channel is being delivered */
+    private boolean isBusy() {
+        return endpoint!=null ? endpoint.isBusy() : deliveryPermits.availablePermits() < deliveryConcurrency;
+    }
+
+    /** Queues the message for delivery, bypassing the coalescer
+     * @param future null unless the message was sent with <code>sendAsync()</code> */
+    void enqueue(NagiosMsgLevel msgLevel, String message, DeliveryFuture future) {
+        if (offer(msgLevel, null, message, future, heartbeat))
+            signal();
+    }
+
+    /** Queues the heartbeats of this channel that are due, then wakes a sender once so that they are delivered in one
+     * batch; called by the timing wheel's thread
+     * @param due heartbeats linked through <code>nextDue</code> */
+    void emitHeartbeats(NscaHeartbeat due) {
+        boolean queued = false;
+        for (NscaHeartbeat hb = due; hb!=null; hb = hb.nextDue)
+            queued |= offer(hb.getLevel(), hb.service, hb.getMessage(), null, null);
+        if (queued)
+            signal();
+    }
+
+    /** @param service encoded service name, or null for this channel's service
+     * @param own heartbeat of this channel's service, updated only if the message is queued or spooled; or null
+     * @return true if the message was queued, false if it was spooled or dropped */
+    private boolean offer(NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future,
+                          NscaHeartbeat own) {
+        if (pending.offer(msgLevel, service, message, future)) {
+            metrics.enqueued();
+            if (own!=null)
+                own.sent(msgLevel, message, System.currentTimeMillis());
+            return true;
+        }
+        if (spool!=null && spool.append(msgLevel, service, message)) {
+            metrics.spooled(1);
+            if (own!=null)
+                own.sent(msgLevel, message, System.currentTimeMillis());
+            if (future!=null)
+                future.spooled(0);
+            return false;
+        }
+        metrics.dropped();
+        if (future!=null)
+            future.dropped();
+        if (pending.getDroppedCount()==1)
+            logger.error("Nsca queue for '" + nscaService + "' is full; messages are being dropped, see getDroppedCount()");
+        return false;
+    }
+
+    private void signal() {
+        if (endpoint!=null)
+            endpoint.signal();
+        else
+            scheduleDrain();
+    }
+
+    /** Queues or starts another sender for this channel unless deliveryConcurrency senders are already active */
+    private void scheduleDrain() {
+        if (!deliveryPermits.tryAcquire())
+            return;
+        NscaSendRunnable sender = idleSenders.poll(); // never null while a permit is held
         try {
-            threadPool.execute(nscaSendRunnable);
+            if (deliveryEngine==DeliveryEngine.VIRTUAL)
+                virtualThreads.execute(sender);
+            else
+                group.getExecutor().execute(sender);
         } catch (RejectedExecutionException e) {
+            idleSenders.add(sender);
+            deliveryPermits.release();
             logger.error(e.getMessage());
         }
     }
@@ -216,43 +803,67 @@ public class Nsca {
         startupMsg = msgText;
     }
 
+    /** Closes this channel's connections to the NSCA server. They are reopened if more messages are sent.
+     * If the channel has a spool, messages that are still queued are moved to it so that they survive a restart.
+     * A channel returned by {@link #getChannel(String, Class)} is only closed by the last of its users to close it. */
+    public void close() {
+        if (registryKey!=null) {
+            int count;
+            do {
+                count = users.get();
+                if (count==0)
+                    return;
+            } while (!users.compareAndSet(count, count - 1));
+            if (count > 1)
+                return;
+            channels.remove(registryKey, this);
+        }
+        for (NscaHeartbeat hb : heartbeats)
+            hb.cancel();
+        if (coalescer!=null)
+            coalescer.close();
+        if (endpoint!=null)
+            endpoint.close();
+        for (NscaSendRunnable sender : senders)
+            sender.connection.close();
+        if (resultWriter!=null)
+            resultWriter.close();
+        if (spool!=null) {
+            NscaBatch batch = new NscaBatch(getMaxBatchCount());
+            IOException full = new IOException("Spool is full; message queued when the channel was closed was not kept");
+            while (pending.drainTo(batch, batch.capacity()) > 0) {
+                int spooled = batch.spool(spool, 0, full);
+                metrics.spooled(spooled);
+                metrics.failed(batch.size() - spooled);
+                batch.clear();
+            }
+            spool.close();
+        }
+        metrics.closed(); // also unregisters them
+    }
+
     /** Encrypts the send buffer according the nsca encryption method
      * @param buffer Buffer to be encrypted
      * @param encryptionVector Encryption Initialization Vector
      * @throws Exception for unsupported encryption scheme */
     public void encryptBuffer(Encryption encryptionMethod, byte[] buffer, byte[] encryptionVector) throws Exception {
-        switch (encryptionMethod) {
-            case NONE:
-                break;
-
-            case XOR:
-                /* rotate over encryptionVector received from the server */
-                for (int y = 0, x = 0; y < buffer.length; y++, x++) {
-                    /* keep rotating over encryptionVector */
-                    if (x >= INITIALIZATION_VECTOR_SIZE)
-                        x = 0;
-                    buffer[y] ^= encryptionVector[x];
-                }
-                /* rotate over password */
-                if (_password != null) {
-                    byte[] password = _password.getBytes();
-                    for (int y = 0, x = 0; y < buffer.length; y++, x++) {
-                        if (x >= password.length)
-                            x = 0;
-                        buffer[y] ^= password[x];
-                    }
-                }
-                break;
+        NscaEncryptor encryptor = encryptionMethod==Encryption.XOR ?
+            new XorEncryptor(encryptionVector, passwordBytes, buffer.length) :
+            encryptionMethod.newEncryptor(encryptionVector, passwordBytes);
+        encryptor.encrypt(ByteBuffer.wrap(buffer), 0, buffer.length);
+    }
 
-            default:
-                throw new Exception("NagiosAppender::encryptBuffer(): unsupported encryption method: " + encryptionMethod);
-        }
+    /** @return a new encryptor for a connection that received <code>encryptionVector</code> from the server */
+    NscaEncryptor newEncryptor(byte[] encryptionVector) throws GeneralSecurityException {
+        return encryptionProvider.newEncryptor(encryptionVector, passwordBytes);
     }
 
     public static String getFileContents(String filename) {
         InputStream resStream = Nsca.class.getClassLoader().getResourceAsStream(filename);
-        if (resStream==null)
-            logger.warn("Could not load '%s' from the classpath".format(filename));
+        if (resStream==null) {
+            logger.warn(String.format("Could not load '%s' from the classpath", filename));
+            return "";
+        }
         try { // see http://weblogs.java.net/blog/pat/archive/2004/10/stupid_scanner_1.html
             return new java.util.Scanner(resStream).useDelimiter("\\A").next();
         } catch (java.util.NoSuchElementException e) {
@@ -260,51 +871,151 @@ public class Nsca {
         }
     }
 
+    /** Replaces <code>%className%</code> and <code>%packageName%</code> in a single pass, without regular expressions,
+     * so that names containing '$' are taken literally */
     protected static String substitute(String input, String packageName, String className) {
-        return input.replaceAll("%className%", className).replaceAll("%packageName%", packageName);
+        int percent = input.indexOf('%');
+        if (percent < 0)
+            return input;
+        StringBuilder sb = new StringBuilder(input.length() + 64);
+        int copied = 0;
+        while (percent >= 0) {
+            String replacement = null;
+            int length = 0;
+            if (input.startsWith(CLASS_NAME, percent)) {
+                replacement = className;
+                length = CLASS_NAME.length();
+            } else if (input.startsWith(PACKAGE_NAME, percent)) {
+                replacement = packageName;
+                length = PACKAGE_NAME.length();
+            }
+            if (replacement==null) {
+                percent = input.indexOf('%', percent + 1);
+                continue;
+            }
+            sb.append(input, copied, percent).append(replacement);
+            copied = percent + length;
+            percent = input.indexOf('%', copied);
+        }
+        return sb.append(input, copied, input.length()).toString();
     }
 
-    /**
-     * @param strConf might contain config info; can be null.
-     * @see #Nsca(String)
-     * @return Boolean specifying whether configuration succeeded
-     */
-    protected void configure(String strConf, Class caller) throws Exception {
-        String className = "";
-        String packageName = "";
-        if (caller!=null) {
-            String fqName = caller.getName();
-            className = fqName.substring(fqName.lastIndexOf(".")+1);
-            packageName = fqName.substring(0, fqName.lastIndexOf("."));
+    /** @return application.conf layered over nsca.conf, with substitutions made for the given caller */
+    private static Config getBaseConfig(String packageName, String className) {
+        synchronized (baseConfigs) {
+            if (nscaConf==null) {
+                applicationConf = getFileContents("application.conf");
+                nscaConf = getFileContents("nsca.conf");
+            }
         }
+        boolean substituted = applicationConf.contains(CLASS_NAME) || applicationConf.contains(PACKAGE_NAME) ||
+                nscaConf.contains(CLASS_NAME) || nscaConf.contains(PACKAGE_NAME);
+        String key = substituted ? packageName + "#" + className : "";
+        Config base = baseConfigs.get(key);
+        if (base!=null)
+            return base;
 
         Config configApplication = ConfigFactory.empty();
         try {
-            String contents = substitute(getFileContents("application.conf"), packageName, className);
-            configApplication = ConfigFactory.parseString(contents);
+            configApplication = ConfigFactory.parseString(substitute(applicationConf, packageName, className));
         } catch (Exception e) {
             logger.warn("Warning: " + e.getMessage() + " reading application.conf; values will be taken from nsca.conf if present");
         }
 
         Config configNsca = ConfigFactory.empty();
         try {
-            String contents = substitute(getFileContents("nsca.conf"), packageName, className);
-            configNsca = ConfigFactory.parseString(contents);
+            configNsca = ConfigFactory.parseString(substitute(nscaConf, packageName, className));
         } catch (Exception e) {
             logger.warn("Warning: " + e.getMessage() + " reading nsca.conf; default values will be used");
         }
 
+        base = configApplication.withFallback(configNsca);
+        Config existing = baseConfigs.putIfAbsent(key, base);
+        return existing!=null ? existing : base;
+    }
+
+    /**
+     * @param strConf might contain config info; can be null.
+     * @return the <code>nsca</code> section of strConf layered over application.conf and nsca.conf
+     */
+    private static Config resolve(String strConf, Class caller) {
+        String className = "";
+        String packageName = "";
+        if (caller!=null) {
+            String fqName = caller.getName();
+            int dot = fqName.lastIndexOf('.');
+            className = fqName.substring(dot + 1);
+            packageName = dot < 0 ? "" : fqName.substring(0, dot);
+        }
+
         Config configStr = ConfigFactory.empty();
         if (strConf!=null)
             configStr = ConfigFactory.parseString(substitute(strConf, packageName, className));
-        Config config = ConfigFactory.load(configStr).withFallback(configApplication).withFallback(configNsca).getConfig("nsca");
+        return ConfigFactory.load(configStr).withFallback(getBaseConfig(packageName, className)).getConfig("nsca");
+    }
+
+    /**
+     * Returns a channel shared by every caller whose settings resolve to the same values, creating it on first use;
+     * cheaper than a constructor when channels are created repeatedly, for instance per class or per tenant. Each call
+     * must be matched by one call to {@link #close()}; the channel is only closed when its last user closes it.
+     * Heartbeats, aggregators and the startup message belong to the shared channel, so every user sees them, and they
+     * run until the channel is closed.
+     * @see #Nsca(String, Class)
+     */
+    public static Nsca getChannel(String strConf, Class caller) throws Exception {
+        Config config = resolve(strConf, caller);
+        Nsca channel = channels.get(config);
+        if (channel!=null && channel.acquire())
+            return channel;
+        synchronized (channels) {
+            channel = channels.get(config);
+            if (channel==null || !channel.acquire()) {
+                channel = new Nsca(config);
+                channel.registryKey = config;
+                channel.users.set(1);
+                channels.put(config, channel);
+            }
+        }
+        return channel;
+    }
 
+    /** Adds a user to this shared channel; fails if its last user has already closed it */
+    private boolean acquire() {
+        int count;
+        do {
+            count = users.get();
+            if (count==0)
+                return false;
+        } while (!users.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /** @see #getChannel(String, Class) */
+    public static Nsca getChannel(String strConf) throws Exception { return getChannel(strConf, null); }
+
+    /** @see #getChannel(String, Class) */
+    public static Nsca getChannel(Class caller) throws Exception { return getChannel("nsca {}", caller); }
+
+    /**
+     * @param strConf might contain config info; can be null.
+     * @see #Nsca(String)
+     */
+    protected void configure(String strConf, Class caller) throws Exception {
+        configure(resolve(strConf, caller));
+    }
+
+    private void configure(Config config) throws Exception {
         try {
-            _encryptionMethod = Encryption.parse(config.getInt("encryption_method"));
+            // nsca.conf has always documented encryptionMethod, while this method used to read encryption_method
+            String key = config.hasPath("encryptionMethod") ? "encryptionMethod" : "encryption_method";
+            _encryptionMethod = Encryption.parse(config.getInt(key));
         } catch (Exception e) {
-            logger.warn("encryption_method not found in config files, NONE (0) assumed");
+            logger.warn("encryptionMethod not found in config files, NONE (0) assumed");
         }
 
+        if (config.hasPath("encryptionProvider"))
+            encryptionProvider = (NscaEncryptor.Provider) Class.forName(config.getString("encryptionProvider")).newInstance();
+
         try {
             _password  = config.getString("password");
         } catch (Exception e) {
@@ -329,13 +1040,237 @@ public class Nsca {
         } catch (Exception e) {
             logger.warn("nscaService not found in config files, '" + nscaService + "' assumed");
         }
+
+        if (config.hasPath("connectionIdleTimeout"))
+            connectionIdleTimeout = config.getLong("connectionIdleTimeout");
+
+        if (config.hasPath("connectionMaxAge"))
+            connectionMaxAge = config.getLong("connectionMaxAge");
+
+        if (config.hasPath("nscaServers"))
+            nscaServers = config.getStringList("nscaServers");
+
+        if (config.hasPath("loadBalancing"))
+            loadBalancing = LoadBalancing.parse(config.getString("loadBalancing"));
+
+        if (config.hasPath("addressCacheTtl"))
+            addressCacheTtl = config.getLong("addressCacheTtl");
+
+        if (config.hasPath("connectTimeout"))
+            connectTimeout = config.getInt("connectTimeout");
+
+        if (config.hasPath("circuitFailureThreshold"))
+            circuitFailureThreshold = config.getInt("circuitFailureThreshold");
+
+        if (config.hasPath("circuitBackoff"))
+            circuitBackoff = config.getLong("circuitBackoff");
+
+        if (config.hasPath("circuitMaxBackoff"))
+            circuitMaxBackoff = config.getLong("circuitMaxBackoff");
+
+        if (config.hasPath("queueCapacity"))
+            queueCapacity = config.getInt("queueCapacity");
+
+        if (config.hasPath("priorityLanes"))
+            priorityLanes = config.getBoolean("priorityLanes");
+
+        if (config.hasPath("priorityStarvationLimit"))
+            priorityStarvationLimit = config.getInt("priorityStarvationLimit");
+
+        for (NagiosMsgLevel level : NagiosMsgLevel.values()) {
+            String path = "laneCapacity." + level.name();
+            laneCapacities[level.ordinal()] = config.hasPath(path) ? config.getInt(path) : queueCapacity;
+        }
+
+        if (config.hasPath("overflowPolicy"))
+            overflowPolicy = OverflowPolicy.parse(config.getString("overflowPolicy"));
+
+        if (config.hasPath("overflowBlockTimeout"))
+            overflowBlockTimeout = config.getLong("overflowBlockTimeout");
+
+        if (config.hasPath("batchMaxCount"))
+            batchMaxCount = config.getInt("batchMaxCount");
+
+        if (config.hasPath("batchMaxBytes"))
+            batchMaxBytes = config.getInt("batchMaxBytes");
+
+        if (config.hasPath("batchLinger"))
+            batchLinger = config.getLong("batchLinger");
+
+        if (config.hasPath("coalesceWindow"))
+            coalesceWindow = config.getLong("coalesceWindow");
+
+        if (config.hasPath("coalesceRepeatCount"))
+            coalesceRepeatCount = config.getBoolean("coalesceRepeatCount");
+
+        if (config.hasPath("coalesceTransitionsOnly"))
+            coalesceTransitionsOnly = config.getBoolean("coalesceTransitionsOnly");
+
+        if (config.hasPath("coalesceCacheSize"))
+            coalesceCacheSize = config.getInt("coalesceCacheSize");
+
+        if (config.hasPath("charset"))
+            charset = Charset.forName(config.getString("charset"));
+
+        if (config.hasPath("deliveryEngine"))
+            deliveryEngine = DeliveryEngine.parse(config.getString("deliveryEngine"));
+
+        if (config.hasPath("transport"))
+            transport = Transport.parse(config.getString("transport"));
+
+        if (config.hasPath("commandFile"))
+            commandFile = config.getString("commandFile");
+
+        if (config.hasPath("checkResultDirectory"))
+            checkResultDirectory = config.getString("checkResultDirectory");
+
+        if (config.hasPath("deliveryConcurrency"))
+            deliveryConcurrency = config.getInt("deliveryConcurrency");
+
+        if (config.hasPath("nioThreads"))
+            nioThreads = config.getInt("nioThreads");
+
+        if (config.hasPath("executorGroup"))
+            executorGroup = config.getString("executorGroup");
+
+        String groupPath = "executorGroups." + executorGroup;
+        if (config.hasPath(groupPath)) {
+            Config groupConfig = config.getConfig(groupPath);
+            if (groupConfig.hasPath("threads"))
+                poolSize = groupConfig.getInt("threads");
+            if (groupConfig.hasPath("maxThreads"))
+                maxPoolSize = groupConfig.getInt("maxThreads");
+            if (groupConfig.hasPath("queueCapacity"))
+                poolQueueCapacity = groupConfig.getInt("queueCapacity");
+            if (groupConfig.hasPath("keepAlive"))
+                keepAliveTime = groupConfig.getLong("keepAlive");
+        } else if (!executorGroup.equals(NscaExecutorGroup.DEFAULT)) {
+            logger.warn("executorGroups." + executorGroup + " not found in config files; default pool settings assumed");
+        }
+
+        if (config.hasPath("spoolDirectory"))
+            spoolDirectory = config.getString("spoolDirectory");
+
+        if (config.hasPath("spoolSegmentRecords"))
+            spoolSegmentRecords = config.getInt("spoolSegmentRecords");
+
+        if (config.hasPath("spoolMaxSegments"))
+            spoolMaxSegments = config.getInt("spoolMaxSegments");
+
+        if (config.hasPath("spoolSyncInterval"))
+            spoolSyncInterval = config.getLong("spoolSyncInterval");
+
+        if (config.hasPath("spoolReplayInterval"))
+            spoolReplayInterval = config.getLong("spoolReplayInterval");
+
+        if (config.hasPath("heartbeatTick"))
+            heartbeatTick = config.getLong("heartbeatTick");
+
+        if (config.hasPath("metricsRegistry"))
+            metricsRegistry = config.getString("metricsRegistry");
+    }
+
+    /** Creates the state of this channel once its configuration is known, and the shared thread pool if necessary.
+     * @throws GeneralSecurityException if the encryption method cannot be used */
+    private void initChannel() throws IOException, GeneralSecurityException {
+        if (_password != null)
+            passwordBytes = _password.getBytes(charset);
+        if (encryptionProvider==null)
+            encryptionProvider = _encryptionMethod;
+        newEncryptor(new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE]); // fail now rather than on every send
+
+        if (priorityLanes)
+            pending = new NscaPriorityQueue(laneCapacities, overflowPolicy, overflowBlockTimeout, priorityStarvationLimit);
+        else
+            pending = new NscaRingBuffer(queueCapacity, overflowPolicy, overflowBlockTimeout);
+        metrics = NscaMetrics.forChannel(this);
+        List<String> endpoints = nscaServers==null || nscaServers.isEmpty() ? Collections.singletonList(nscaHost) : nscaServers;
+        serverPool = new NscaServerPool(this, endpoints, nscaPort, loadBalancing, addressCacheTtl);
+        if (transport!=Transport.NSCA) {
+            resultWriter = NscaResultWriter.forChannel(this);
+            if (deliveryEngine==DeliveryEngine.NIO) {
+                logger.warn("The nio delivery engine only applies to the NSCA transport; using the executor engine");
+                deliveryEngine = DeliveryEngine.EXECUTOR;
+            }
+            if (spoolDirectory!=null) {
+                logger.warn("Spooling only applies to the NSCA transport; spoolDirectory is ignored");
+                spoolDirectory = null;
+            }
+        }
+        if (deliveryEngine==DeliveryEngine.VIRTUAL && getVirtualThreads()==null) {
+            logger.warn("Virtual threads require Java 21 or later; using the EXECUTOR delivery engine");
+            deliveryEngine = DeliveryEngine.EXECUTOR;
+        }
+        int concurrency = deliveryEngine==DeliveryEngine.NIO ? 0 : Math.max(1, deliveryConcurrency);
+        deliveryPermits = new Semaphore(concurrency);
+        for (int i = 0; i < concurrency; i++)
+            senders.add(new NscaSendRunnable());
+        idleSenders.addAll(senders);
+        if (spoolDirectory!=null) {
+            String name = (nscaHost + "_" + nscaPort + "_" + nscaService).replaceAll("[^A-Za-z0-9._-]", "_");
+            spool = new NscaSpool(this, new File(spoolDirectory, name), spoolSegmentRecords, spoolMaxSegments,
+                    spoolSyncInterval, spoolReplayInterval);
+        }
+        if (coalesceWindow > 0 || coalesceTransitionsOnly)
+            coalescer = new NscaCoalescer(this, coalesceWindow, coalesceRepeatCount, coalesceTransitionsOnly, coalesceCacheSize);
+        if (deliveryEngine==DeliveryEngine.NIO)
+            endpoint = NscaNioEngine.getInstance(nioThreads).register(this);
+        if (deliveryEngine==DeliveryEngine.EXECUTOR) {
+            group = NscaExecutorGroup.get(executorGroup, poolSize, maxPoolSize, poolQueueCapacity, keepAliveTime);
+            if (group.getName().equals(NscaExecutorGroup.DEFAULT) && threadPool==null) {
+                queue = group.getQueue();
+                threadPool = group.getExecutor();
+            }
+        }
+        NscaMetricsRegistry registry = getMetricsRegistry(metricsRegistry);
+        if (registry!=null)
+            metrics.publish(registry, nscaService + "@" + serverPool);
     }
 
-    private void maybeCreateThreadPool() {
-        if (threadPool==null) {
-            queue = new LinkedBlockingQueue(2000);
-            threadPool = new ThreadPoolExecutor(poolSize, maxPoolSize, keepAliveTime, TimeUnit.SECONDS, queue);
+    /** @return the registry selected by <code>name</code>, created with the global metrics registered on first use, or
+     * null for "none" or a class that cannot be instantiated */
+    private static synchronized NscaMetricsRegistry getMetricsRegistry(String name) {
+        if (name==null || name.equalsIgnoreCase("none"))
+            return null;
+        NscaMetricsRegistry registry = metricsRegistries.get(name);
+        if (registry==null) {
+            try {
+                registry = name.equalsIgnoreCase("jmx") ? new NscaJmxRegistry() :
+                        (NscaMetricsRegistry) Class.forName(name).newInstance();
+            } catch (Exception e) {
+                logger.error("Unable to create metricsRegistry " + name + ": " + e);
+                return null;
+            }
+            registry.register("global", NscaMetrics.getGlobal());
+            metricsRegistries.put(name, registry);
+        }
+        return registry;
+    }
+
+    /** @return executor that runs each task on a new virtual thread, or null if the JVM does not support them */
+    private static synchronized ExecutorService getVirtualThreads() {
+        if (virtualThreads==null) {
+            try { // Java 21 API, looked up reflectively so that PushToNagios still runs on Java 8
+                virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                return null;
+            }
         }
+        return virtualThreads;
+    }
+
+    NscaServerPool getServerPool() { return serverPool; }
+
+    /** @return circuit breaker shared by all connections to the server, or null if circuitFailureThreshold is 0 */
+    NscaCircuitBreaker getCircuitBreaker(String host, int port) {
+        if (circuitFailureThreshold <= 0)
+            return null;
+        return NscaCircuitBreaker.forEndpoint(host, port, circuitFailureThreshold, circuitBackoff, circuitMaxBackoff);
+    }
+
+    /** @return a new encoder; encoders are not thread safe, so each sender has its own */
+    NscaPacketEncoder newPacketEncoder() {
+        return new NscaPacketEncoder(nscaVersion, reportingHost, nscaService, charset);
     }
 
     protected String getHost() {
@@ -370,167 +1305,168 @@ public class Nsca {
                 _password = password;
         }
 
-        maybeCreateThreadPool();
+        initChannel();
     }
 
+    /** Drains the messages pending for this channel in batches; each batch is encoded into one contiguous buffer and
+     * sent with a single write over the sender's connection. A sender is only queued or running while it holds one
+     * of the channel's delivery permits, so its connection, encoder and buffers are never used concurrently. */
     private class NscaSendRunnable implements Runnable {
-        private boolean finished = false;
-        private String message;
-        private NagiosMsgLevel msgLevel;
-        private ArrayList buffer;
-
-        public NscaSendRunnable(NagiosMsgLevel msgLevel, String message) {
-            this.message = message;
-            this.msgLevel = msgLevel;
-        }
+        private final int maxCount = getMaxBatchCount();
+        private final NscaBatch batch = new NscaBatch(maxCount);
+        private final NscaPacketEncoder encoder = newPacketEncoder();
+        private final NscaConnection connection = new NscaConnection(Nsca.this, serverPool);
+        private ByteBuffer buffer;
 
         public void run() {
-            Socket s = null;
-            OutputStream out = null;
-            DataInputStream in = null;
-            logger.debug("Runnable starting; preparing to send level " + msgLevel + " message '" + message + "' to '" +
-                    nscaService + "' service monitor on " + nscaHost + ":" + nscaPort);
             try {
-                int count = 0;
-                while (count < 3) {
-                    count++;
-                    s = new Socket();
-                    s.setKeepAlive(true);
-                    s.setSoTimeout(timeout);
-                    s.setTcpNoDelay(false);
-                    java.net.InetSocketAddress socketAddress = new InetSocketAddress(nscaHost, nscaPort);
-                    s.connect(socketAddress);
-                    if (s.isBound())
+                while (true) {
+                    batch.clear();
+                    fill();
+                    if (batch.isEmpty())
                         break;
-                    else {
-                        try {
-                            s.close();
-                        } catch (Exception e) {
-                            logger.warn("Runnable Exception while closing socket: '" + e.getMessage());
-                        }
-                        s = null;
-                    }
-                }
-                out = s.getOutputStream();
-                in = new DataInputStream(s.getInputStream());
-                byte[] encryptionVector = new byte[128];
-                in.readFully(encryptionVector, 0, 128); // Read the encryption initialization vector
-                int serverTime = in.readInt();          // Read the server time stamp
-
-                /** local variable used for populating byte arrays. */
-                String temp;
-
-                /** Set up the NSCA host that the push is initiated from */
-                byte[] hostName = new byte[64];
-                temp = (null == reportingHost) ? "UNKNOWN" : reportingHost;
-                System.arraycopy(temp.getBytes(), 0, hostName, 0, temp.getBytes().length);
-
-                // Set up the reporting service name.
-                byte[] serviceName = new byte[128];
-                temp = (null == nscaService) ? "UNKNOWN" : nscaService;
-                System.arraycopy(temp.getBytes(), 0, serviceName, 0, temp.getBytes().length);
-
-                // Set up the free text message.
-                byte[] pluginOutput = new byte[512];
-
-                // NSCA doesn't handle line feeds very well, so remove them
-                message.replaceAll("\n", "");
-                if ((null != message) && (message.getBytes().length <= 512)) {
-                    System.arraycopy(message.getBytes(), 0, pluginOutput, 0, message.getBytes().length);
-                } else if (null != message) {
-                    System.arraycopy(message.getBytes(), 0, pluginOutput, 0, pluginOutput.length);
-                } else {
-                    System.arraycopy("<null>".getBytes(), 0, pluginOutput, 0, pluginOutput.length);
+                    deliver();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                idleSenders.add(this);
+                deliveryPermits.release();
+                idle();
+            }
+            // a message may have been offered after the last poll but before the permit was released
+            if (!pending.isEmpty())
+                scheduleDrain();
+        }
 
-                // alert is made up of 4 ints, followed by 3 strings
-                int alertSize = 4 + 4 + 4 + 4 + hostName.length + serviceName.length + pluginOutput.length;
-                byte[] alert = new byte[alertSize];
-
-                // 1st int
-                alert[0] = (byte) ((nscaVersion >> 8) & 0xff);
-                alert[1] = (byte) (nscaVersion & 0xff);
-
-                // 2nd int; calculate the crc with zeroes in the crc field
-                alert[4] = (byte) ((0 >> 24) & 0xff);
-                alert[5] = (byte) ((0 >> 16) & 0xff);
-                alert[6] = (byte) ((0 >> 8) & 0xff);
-                alert[7] = (byte) (0 & 0xff);
-
-                // 3rd int (echo the time read from the server)
-                alert[8]  = (byte) ((serverTime >> 24) & 0xff);
-                alert[9]  = (byte) ((serverTime >> 16) & 0xff);
-                alert[10] = (byte) ((serverTime >> 8) & 0xff);
-                alert[11] = (byte) (serverTime & 0xff);
-
-                // 4th int (this is the code associated with the alert)
-                alert[12] = (byte) ((msgLevel.value >> 8) & 0xff);
-                alert[13] = (byte) (msgLevel.value & 0xff);
-                int offset = 14;
-
-                // 1st of 3 strings
-                System.arraycopy(hostName, 0, alert, offset, hostName.length);
-                offset += hostName.length;
-
-                // 2nd of 3 strings
-                System.arraycopy(serviceName, 0, alert, offset, serviceName.length);
-                offset += serviceName.length;
-
-                // 3rd of 3 strings
-                System.arraycopy(pluginOutput, 0, alert, offset, pluginOutput.length);
-                offset += pluginOutput.length;
-
-                // now we can calculate the crc
-                CRC32 crc = new CRC32();
-                crc.update(alert);
-                long crcValue = crc.getValue();
-
-                // now that we've calculated the crc, fill it in
-                alert[4] = (byte) ((crcValue >> 24) & 0xff);
-                alert[5] = (byte) ((crcValue >> 16) & 0xff);
-                alert[6] = (byte) ((crcValue >> 8) & 0xff);
-                alert[7] = (byte)  (crcValue & 0xff);
-
-                encryptBuffer(_encryptionMethod, alert, encryptionVector);
-
-                logger.debug("Writing to socket; encryptionVector=" + encryptionVector + "; alert=" + alert.toString());
-                out.write(alert, 0, alert.length);
-                out.flush();
-
-                logger.debug("Cleaning up");
-                out.close(); out = null;
-                in.close();  in  = null;
-                s.close();   s   = null;
-                finished = true;
-                logger.debug("Finished");
+        /** Takes everything currently pending, up to maxCount messages, waiting up to batchLinger for a full batch */
+        private void fill() throws InterruptedException {
+            pending.drainTo(batch, maxCount);
+            if (batchLinger <= 0 || batch.isEmpty())
+                return;
+            long deadline = System.currentTimeMillis() + batchLinger;
+            while (batch.size() < maxCount) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                if (pending.drainTo(batch, maxCount - batch.size())==0)
+                    Thread.sleep(Math.min(remaining, 1));
+            }
+        }
+
+        private void deliver() {
+            if (resultWriter!=null) {
+                deliverLocally();
+                return;
+            }
+            int attempts = 1;
+            if (logger.isDebugEnabled())
+                logger.debug("Runnable preparing to send " + batch.size() + " message(s) to '" +
+                        nscaService + "' service monitor on " + serverPool);
+            connection.lock();
+            try {
+                boolean reused = connection.ensureOpen();
+                try {
+                    write();
+                } catch (IOException e) {
+                    connection.close();
+                    if (!reused)
+                        throw e;
+                    if (logger.isDebugEnabled())
+                        logger.debug("Reused connection failed (" + e.getMessage() + "); reconnecting");
+                    attempts++;
+                    connection.ensureOpen();
+                    write();
+                }
+                delivered(batch, attempts);
             } catch (Exception e) {
-                logger.warn("Nsca error sending to '" + nscaService + "' service monitor on " + nscaHost + ":" + nscaPort + " - " + e.getMessage());
+                connection.close();
+                if (e instanceof CircuitOpenException && attempts==1)
+                    attempts = 0; // nothing was sent
+                undeliverable(batch, attempts, e);
             } finally {
-                if (null != out) {
-                    try {
-                        out.close();
-                    } catch (Exception ee) {
-                        logger.warn("Runnable Exception while closing OutputStream: '" + ee.getMessage());
-                    }
-                }
-                if (null != out) {
-                    try {
-                        in.close();
-                    } catch (Exception ee) {
-                        logger.warn("Runnable Exception while closing InputStream: '" + ee.getMessage());
-                    }
-                }
-                if (null != s) {
-                    try {
-                        s.close();
-                    } catch (Exception ee) {
-                        logger.warn("Runnable Exception while closing socket: '" + ee.getMessage());
-                    }
-                }
-                synchronized(this) {
-                    notifyAll();
+                connection.unlock();
+            }
+        }
+
+        /** Writes the batch straight to Nagios; retried once, as the command file may have been recreated by a restart */
+        private void deliverLocally() {
+            int attempts = 1;
+            try {
+                try {
+                    resultWriter.write(batch);
+                } catch (IOException e) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Writing to Nagios failed (" + e.getMessage() + "); retrying");
+                    attempts++;
+                    resultWriter.write(batch);
                 }
+                delivered(batch, attempts);
+            } catch (Exception e) {
+                undeliverable(batch, attempts, e);
             }
         }
+
+        /** Encodes the whole batch with the connection's initialization vector and time stamp, then writes it at once */
+        private void write() throws Exception {
+            if (buffer==null)
+                buffer = ByteBuffer.allocate(maxCount * PACKET_SIZE);
+            encodeBatch(batch, encoder, connection.getTimestamp(), connection.getEncryptor(), buffer);
+            connection.write(buffer);
+        }
+    }
+
+    /** @return maximum number of messages per batch, honoring both batchMaxCount and batchMaxBytes */
+    int getMaxBatchCount() {
+        return Math.max(1, Math.min(batchMaxCount, batchMaxBytes / PACKET_SIZE));
+    }
+
+    boolean hasPending() { return !pending.isEmpty(); }
+
+    int pendingCount() { return pending.size(); }
+
+    /** Moves up to <code>max</code> pending messages into <code>batch</code> without waiting */
+    int drainPending(NscaBatch batch, int max) { return pending.drainTo(batch, max); }
+
+    /** Completes the futures of a batch that was written; the server is reachable, so spooled messages are replayed */
+    void delivered(NscaBatch batch, int attempts) {
+        metrics.getRoundTripLatency().record(System.nanoTime() - batch.getStartNanos());
+        metrics.sent(batch.size());
+        metrics.attempts(attempts);
+        batch.delivered(attempts);
+        if (spool!=null)
+            spool.wake();
+    }
+
+    /** Spools a batch that could not be written, or fails it if there is no spool */
+    void undeliverable(NscaBatch batch, int attempts, Exception cause) {
+        if (!(cause instanceof CircuitOpenException))
+            logger.warn("Nsca error sending " + batch.size() + " message(s) to '" + nscaService + "' service monitor on " +
+                    (resultWriter==null ? serverPool : resultWriter.file) + " - " + cause.getMessage());
+        else if (logger.isDebugEnabled())
+            logger.debug(cause.getMessage() + "; " + batch.size() + " message(s) not sent");
+        metrics.attempts(attempts);
+        if (spool!=null) {
+            int spooled = batch.spool(spool, attempts, cause);
+            metrics.spooled(spooled);
+            metrics.failed(batch.size() - spooled);
+        } else {
+            metrics.failed(batch.size());
+            batch.failed(attempts, cause);
+        }
+    }
+
+    /** Encodes and encrypts every message of <code>batch</code> into consecutive packets of <code>buffer</code>, which
+     * must be backed by an array, and flips the buffer so that it is ready to be written */
+    void encodeBatch(NscaBatch batch, NscaPacketEncoder encoder, int serverTime, NscaEncryptor encryptor, ByteBuffer buffer) throws Exception {
+        long start = System.nanoTime();
+        buffer.clear();
+        for (int i = 0; i < batch.size(); i++) {
+            int offset = buffer.position();
+            encoder.encode(batch.getLevel(i), batch.getService(i), batch.getMessage(i), serverTime, buffer);
+            encryptor.encrypt(buffer, offset, PACKET_SIZE);
+        }
+        buffer.flip();
+        metrics.getEncodeTime().record(System.nanoTime() - start);
     }
 }
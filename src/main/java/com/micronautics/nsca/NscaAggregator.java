@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts high-frequency events, such as failed requests, and reports them as one check result per window instead of
+ * one message per event. Created by {@link Nsca#aggregator(String, String, long, long, long)}. Events are counted in a
+ * striped counter, so recording them from many threads costs an uncontended add. At the end of each window the timing
+ * wheel that drives heartbeats takes the count, sets the level from the thresholds, and sends output such as
+ * <pre>
+ * 12 errors in 60.0s | errors=12;5;10 rate=0.2/s
+ * </pre>
+ * A result is sent for every window, including those without events, so the service also stays fresh. */
+public class NscaAggregator extends NscaHeartbeat {
+    private final String label;
+    private final long warning;
+    private final long critical;
+    private final LongAdder events = new LongAdder();
+
+    /** Reused for every result; only used by the timing wheel's thread */
+    private final StringBuilder output = new StringBuilder(128);
+
+    /** Events counted up to the end of the last window; only used by the timing wheel's thread. The adder is never
+     * reset, as sumThenReset() loses increments that land between reading and zeroing a cell on Java 8 */
+    private long reported = 0;
+
+    private volatile long lastCount = 0;
+
+    NscaAggregator(Nsca channel, String serviceName, byte[] service, String label, long window, long warning, long critical) {
+        super(channel, serviceName, service, Nsca.NagiosMsgLevel.OK, "no " + label + " counted yet", window);
+        this.label = label;
+        this.warning = warning;
+        this.critical = critical;
+        markSent(System.currentTimeMillis()); // the first result is due at the end of the first window
+    }
+
+    /** Counts one event */
+    public void record() { events.increment(); }
+
+    /** Counts <code>count</code> events */
+    public void record(long count) { events.add(count); }
+
+    /** @return name of the events in the output and the performance data */
+    public String getLabel() { return label; }
+
+    /** @return number of events in a window from which the result is WARN; 0 if disabled */
+    public long getWarning() { return warning; }
+
+    /** @return number of events in a window from which the result is CRITICAL; 0 if disabled */
+    public long getCritical() { return critical; }
+
+    /** @return number of events counted in the last window that was reported */
+    public long getLastCount() { return lastCount; }
+
+    /** Closes the window that started when the previous result was sent, and turns its count into the next result */
+    @Override
+    void due(long now) {
+        long total = events.sum();
+        long count = total - reported;
+        reported = total;
+        long elapsed = Math.max(1, now - getLastSent());
+        Nsca.NagiosMsgLevel level = Nsca.NagiosMsgLevel.OK;
+        if (critical > 0 && count >= critical)
+            level = Nsca.NagiosMsgLevel.CRITICAL;
+        else if (warning > 0 && count >= warning)
+            level = Nsca.NagiosMsgLevel.WARN;
+
+        output.setLength(0);
+        output.append(count).append(' ').append(label).append(" in ");
+        NscaPerfData.appendFixed(output, elapsed / 1000.0, 1).append("s | ");
+        NscaPerfData.appendMetric(output, label, count, warning, critical).append(" rate=");
+        NscaPerfData.appendFixed(output, count * 1000.0 / elapsed, 1).append("/s");
+        lastCount = count;
+        update(level, output.toString());
+    }
+}
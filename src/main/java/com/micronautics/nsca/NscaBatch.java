@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/**
+ * Reusable holder for the messages of one batch. Messages are copied out of the channel's ring buffer, so its slots
+ * can be reused while the batch is still being written or retried. Not thread safe. */
+class NscaBatch {
+    private final Nsca.NagiosMsgLevel[] levels;
+    private final String[] messages;
+
+    /** Encoded service names of messages that are not for the channel's own service, otherwise null */
+    private final byte[][] services;
+
+    /** Futures of messages sent with <code>sendAsync()</code>; null for messages sent with <code>send()</code> */
+    private final DeliveryFuture[] futures;
+
+    /** Order in which the messages were sent, when they come from several priority lanes */
+    private final long[] stamps;
+
+    private int size = 0;
+
+    /** When the first message was added, for the round-trip latency */
+    private long startNanos;
+
+    NscaBatch(int capacity) {
+        levels = new Nsca.NagiosMsgLevel[capacity];
+        messages = new String[capacity];
+        services = new byte[capacity][];
+        futures = new DeliveryFuture[capacity];
+        stamps = new long[capacity];
+    }
+
+    int capacity() { return levels.length; }
+
+    int size() { return size; }
+
+    boolean isEmpty() { return size==0; }
+
+    boolean isFull() { return size==levels.length; }
+
+    void add(Nsca.NagiosMsgLevel msgLevel, String message, DeliveryFuture future) {
+        add(msgLevel, null, message, future, 0);
+    }
+
+    void add(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future, long stamp) {
+        if (size==0)
+            startNanos = System.nanoTime();
+        levels[size] = msgLevel;
+        services[size] = service;
+        messages[size] = message;
+        futures[size] = future;
+        stamps[size] = stamp;
+        size++;
+    }
+
+    /** Puts the messages back in the order they were sent; an insertion sort, as batches are small and nearly sorted */
+    void sortByStamp() {
+        for (int i = 1; i < size; i++) {
+            Nsca.NagiosMsgLevel level = levels[i];
+            byte[] service = services[i];
+            String message = messages[i];
+            DeliveryFuture future = futures[i];
+            long stamp = stamps[i];
+            int j = i - 1;
+            for (; j >= 0 && stamps[j] > stamp; j--) {
+                levels[j + 1] = levels[j];
+                services[j + 1] = services[j];
+                messages[j + 1] = messages[j];
+                futures[j + 1] = futures[j];
+                stamps[j + 1] = stamps[j];
+            }
+            levels[j + 1] = level;
+            services[j + 1] = service;
+            messages[j + 1] = message;
+            futures[j + 1] = future;
+            stamps[j + 1] = stamp;
+        }
+    }
+
+    Nsca.NagiosMsgLevel getLevel(int i) { return levels[i]; }
+
+    String getMessage(int i) { return messages[i]; }
+
+    long getStartNanos() { return startNanos; }
+
+    /** @return encoded service name, or null for the channel's own service */
+    byte[] getService(int i) { return services[i]; }
+
+    /** Completes the futures of the whole batch */
+    void delivered(int attempts) {
+        for (int i = 0; i < size; i++)
+            if (futures[i]!=null)
+                futures[i].delivered(attempts);
+    }
+
+    /** Completes the futures of the whole batch */
+    void failed(int attempts, Throwable cause) {
+        for (int i = 0; i < size; i++)
+            if (futures[i]!=null)
+                futures[i].failed(attempts, cause);
+    }
+
+    /** Appends the whole batch to the spool. Futures complete as spooled, or as failed with <code>cause</code> for
+     * messages that the spool had no room for.
+     * @return number of messages that were appended */
+    int spool(NscaSpool spool, int attempts, Throwable cause) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            boolean spooled = spool.append(levels[i], services[i], messages[i]);
+            if (spooled)
+                count++;
+            if (futures[i]!=null) {
+                if (spooled)
+                    futures[i].spooled(attempts);
+                else
+                    futures[i].failed(attempts, cause);
+            }
+        }
+        return count;
+    }
+
+    /** Releases the references held by the batch so that the messages can be garbage collected */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            levels[i] = null;
+            services[i] = null;
+            messages[i] = null;
+            futures[i] = null;
+        }
+        size = 0;
+    }
+}
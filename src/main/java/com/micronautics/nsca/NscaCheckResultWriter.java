@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes each batch as one check result file in the Nagios check result directory, where Nagios reaps it as it does
+ * the results of its own checks. Files are named like those of Nagios, "c" and six random characters, and are only
+ * picked up once the matching ".ok" file exists, so a half-written batch is never read. */
+class NscaCheckResultWriter extends NscaResultWriter {
+    private static final String NAME_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    NscaCheckResultWriter(Nsca channel, File directory) {
+        super(channel, directory);
+    }
+
+    synchronized void write(NscaBatch batch) throws IOException {
+        if (!file.isDirectory())
+            throw new IOException("Nagios check result directory " + file + " does not exist");
+        long now = System.currentTimeMillis() / 1000L;
+        text.setLength(0);
+        text.append("### Passive Check Result File ###\nfile_time=").append(now).append("\n\n");
+        for (int i = 0; i < batch.size(); i++) {
+            text.append("### Nagios Service Check Result ###\nhost_name=").append(channel.getReportingHost())
+                    .append("\nservice_description=").append(serviceName(batch, i))
+                    .append("\ncheck_type=1\ncheck_options=0\nscheduled_check=0\nreschedule_check=0\nlatency=0.0")
+                    .append("\nstart_time=").append(now).append(".0\nfinish_time=").append(now).append(".0")
+                    .append("\nearly_timeout=0\nexited_ok=1\nreturn_code=").append(batch.getLevel(i).getValue())
+                    .append("\noutput=");
+            appendOutput(batch.getMessage(i));
+            text.append("\n\n");
+        }
+        ByteBuffer contents = encodeText();
+
+        File result = create();
+        try {
+            FileOutputStream out = new FileOutputStream(result);
+            try {
+                out.write(contents.array(), 0, contents.limit());
+            } finally {
+                out.close();
+            }
+            if (!new File(file, result.getName() + ".ok").createNewFile())
+                throw new IOException("Unable to create " + result + ".ok");
+        } catch (IOException e) {
+            result.delete();
+            throw e;
+        }
+    }
+
+    /** @return a new, empty file with a name that Nagios recognizes as a check result */
+    private File create() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] name = new char[7];
+        name[0] = 'c';
+        while (true) {
+            for (int i = 1; i < name.length; i++)
+                name[i] = NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length()));
+            File candidate = new File(file, new String(name));
+            if (candidate.createNewFile())
+                return candidate;
+        }
+    }
+
+    void close() { }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Circuit breaker for the connections to one NSCA server, shared by every channel and sender that connects to it.
+ * After <code>threshold</code> consecutive failed connects the circuit opens and connects fail immediately with a
+ * {@link CircuitOpenException} instead of each waiting for a dead host. Once the backoff has elapsed a single probe
+ * is let through (half open): if it connects the circuit closes, otherwise it opens again for twice as long, up to
+ * <code>maxBackoff</code>. Each open period is jittered between half and all of the backoff so that channels and
+ * processes do not probe in lockstep. */
+class NscaCircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static Logger logger = LoggerFactory.getLogger(NscaCircuitBreaker.class);
+
+    /** Keyed by "host:port"; the settings of the first channel to connect to a server are used */
+    private static final ConcurrentMap<String, NscaCircuitBreaker> breakers = new ConcurrentHashMap<String, NscaCircuitBreaker>();
+
+    private final String endpoint;
+    private final int threshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long backoff;
+    private long openUntil = 0;
+
+    NscaCircuitBreaker(String endpoint, int threshold, long initialBackoff, long maxBackoff) {
+        this.endpoint = endpoint;
+        this.threshold = threshold;
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.backoff = this.initialBackoff;
+    }
+
+    static NscaCircuitBreaker forEndpoint(String host, int port, int threshold, long initialBackoff, long maxBackoff) {
+        String endpoint = host + ":" + port;
+        NscaCircuitBreaker breaker = breakers.get(endpoint);
+        if (breaker==null) {
+            NscaCircuitBreaker created = new NscaCircuitBreaker(endpoint, threshold, initialBackoff, maxBackoff);
+            breaker = breakers.putIfAbsent(endpoint, created);
+            if (breaker==null)
+                breaker = created;
+        }
+        return breaker;
+    }
+
+    /** Must be followed by {@link #onSuccess()} or {@link #onFailure()} when it returns normally
+     * @throws CircuitOpenException if connects to this server are currently refused */
+    synchronized void beforeConnect() throws CircuitOpenException {
+        switch (state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                if (System.currentTimeMillis() >= openUntil) {
+                    state = State.HALF_OPEN; // this caller is the probe
+                    return;
+                }
+                break;
+            default: // a probe is in progress
+                break;
+        }
+        throw new CircuitOpenException("Circuit to NSCA server " + endpoint + " is open");
+    }
+
+    synchronized void onSuccess() {
+        if (state!=State.CLOSED)
+            logger.info("Circuit to NSCA server " + endpoint + " closed");
+        state = State.CLOSED;
+        failures = 0;
+        backoff = initialBackoff;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state==State.HALF_OPEN) {
+            backoff = Math.min(maxBackoff, backoff * 2);
+            open();
+        } else if (state==State.CLOSED && failures >= threshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        long period = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        openUntil = System.currentTimeMillis() + period;
+        if (state==State.CLOSED)
+            logger.warn("Circuit to NSCA server " + endpoint + " opened for " + period + "ms after " + failures + " failed connects");
+        else if (logger.isDebugEnabled())
+            logger.debug("Circuit to NSCA server " + endpoint + " reopened for " + period + "ms");
+        state = State.OPEN;
+    }
+
+    /** @return true if {@link #beforeConnect()} would let a connect through now */
+    synchronized boolean isAvailable() {
+        return state==State.CLOSED || (state==State.OPEN && System.currentTimeMillis() >= openUntil);
+    }
+
+    synchronized State getState() { return state; }
+}
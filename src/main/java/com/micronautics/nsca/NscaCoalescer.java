@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional layer in front of a channel that suppresses repeated messages. Identical (level, message) pairs sent within
+ * <code>window</code> milliseconds of the first one are collapsed into that first message; when the window closes, the
+ * number of suppressed repeats can be reported as one more message that ends with "(xN)". In transitions-only mode a
+ * message whose level equals the last forwarded level is suppressed as well, unless <code>window</code> has elapsed
+ * since that message was forwarded.
+ * <p>Recent messages are remembered in a direct-mapped cache with a fixed number of slots, indexed by hash, so memory
+ * stays flat no matter how many distinct messages are sent; a colliding message simply evicts the previous occupant of
+ * its slot. Each slot is guarded by its own monitor, so senders only contend when their messages share a slot.</p> */
+class NscaCoalescer {
+    /** Shared amongst all coalescers; reports the repeat counts of windows that have closed */
+    private static ScheduledThreadPoolExecutor sweeper;
+
+    private final Nsca channel;
+    private final long window;
+    private final boolean repeatCount;
+    private final boolean transitionsOnly;
+
+    private final Entry[] entries;
+    private final int mask;
+
+    /** Level and time of the last message forwarded, for transitions-only mode */
+    private volatile Nsca.NagiosMsgLevel lastLevel;
+    private volatile long lastForwarded;
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /** Periodic sweep of this coalescer; null unless repeat counts are reported */
+    private final ScheduledFuture<?> sweep;
+
+    private static class Entry {
+        int hash;
+        Nsca.NagiosMsgLevel msgLevel;
+        String message;
+        long windowStart;
+        int repeats;
+    }
+
+    /** @param cacheSize number of slots, rounded up to a power of two */
+    NscaCoalescer(Nsca channel, long window, boolean repeatCount, boolean transitionsOnly, int cacheSize) {
+        this.channel = channel;
+        this.window = window;
+        this.repeatCount = repeatCount;
+        this.transitionsOnly = transitionsOnly;
+        int size = Integer.highestOneBit(Math.max(2, cacheSize) - 1) << 1;
+        mask = size - 1;
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++)
+            entries[i] = new Entry();
+        if (repeatCount && window > 0)
+            sweep = getSweeper().scheduleWithFixedDelay(new Runnable() {
+                public void run() { sweep(System.currentTimeMillis()); }
+            }, window, window, TimeUnit.MILLISECONDS);
+        else
+            sweep = null;
+    }
+
+    /** Stops sweeping, so that the sweeper no longer references the channel, and reports the repeats of the windows
+     * that are still open */
+    void close() {
+        if (sweep!=null)
+            sweep.cancel(false);
+        sweep(Long.MAX_VALUE);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getSweeper() {
+        if (sweeper==null) {
+            sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "nsca-coalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sweeper.setRemoveOnCancelPolicy(true);
+        }
+        return sweeper;
+    }
+
+    /** @return number of messages suppressed so far */
+    long getSuppressedCount() { return suppressed.get(); }
+
+    /** @return true if the message should be forwarded to the channel's queue */
+    boolean admit(Nsca.NagiosMsgLevel msgLevel, String message) {
+        long now = System.currentTimeMillis();
+        if (transitionsOnly && msgLevel==lastLevel && (window <= 0 || now - lastForwarded < window)) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+
+        if (window > 0) {
+            int hash = message.hashCode() * 31 + msgLevel.ordinal();
+            hash ^= hash >>> 16;
+            Entry entry = entries[hash & mask];
+            Nsca.NagiosMsgLevel evictedLevel;
+            String evicted;
+            synchronized (entry) {
+                if (entry.message!=null && entry.hash==hash && entry.msgLevel==msgLevel && now - entry.windowStart < window &&
+                        entry.message.equals(message)) {
+                    entry.repeats++;
+                    suppressed.incrementAndGet();
+                    return false;
+                }
+                evictedLevel = entry.msgLevel;
+                evicted = close(entry); // evict the previous occupant, reporting its repeats
+                entry.hash = hash;
+                entry.msgLevel = msgLevel;
+                entry.message = message;
+                entry.windowStart = now;
+                entry.repeats = 0;
+            }
+            if (evicted!=null) // outside the monitor, as enqueue() may block under the BLOCK overflow policy
+                channel.enqueue(evictedLevel, evicted, null);
+        }
+
+        lastLevel = msgLevel;
+        lastForwarded = now;
+        return true;
+    }
+
+    /** Reports the repeats of every window that has closed */
+    void sweep(long now) {
+        for (Entry entry : entries) {
+            Nsca.NagiosMsgLevel msgLevel = null;
+            String repeated = null;
+            synchronized (entry) {
+                if (entry.message!=null && now - entry.windowStart >= window) {
+                    msgLevel = entry.msgLevel;
+                    repeated = close(entry);
+                    entry.message = null;
+                    entry.msgLevel = null;
+                }
+            }
+            if (repeated!=null)
+                channel.enqueue(msgLevel, repeated, null);
+        }
+    }
+
+    /** Must be called while holding the entry's monitor; the caller enqueues the result after releasing it
+     * @return message reporting the repeats of the entry's window, or null if there is nothing to report */
+    private String close(Entry entry) {
+        String repeated = null;
+        if (repeatCount && entry.repeats > 0)
+            repeated = entry.message + " (x" + entry.repeats + ")";
+        entry.repeats = 0;
+        return repeated;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Writes <code>PROCESS_SERVICE_CHECK_RESULT</code> external commands to the Nagios command file, normally a named pipe.
+ * The pipe is opened write-only, so this process never reads its own commands, and stays open between batches until
+ * the file is replaced: Nagios recreates the pipe when it restarts, and commands written to the old one would be lost.
+ * Opening the pipe waits until Nagios reads it, and a write to a pipe that nobody reads any more fails rather than
+ * blocking. Each write holds whole lines and at most PIPE_BUF bytes, so that commands from other writers are never
+ * interleaved with ours; a batch therefore takes as few writes as its size allows. */
+class NscaCommandFileWriter extends NscaResultWriter {
+    /** Largest write that POSIX guarantees to be atomic on a pipe */
+    static final int PIPE_BUF = 4096;
+
+    private final ByteBuffer chunk = ByteBuffer.allocate(PIPE_BUF);
+    private FileOutputStream out;
+
+    /** Identity of the file that <code>out</code> was opened on; null if the platform has none, so it is reopened */
+    private Object openedKey;
+
+    NscaCommandFileWriter(Nsca channel, File file) {
+        super(channel, file);
+    }
+
+    synchronized void write(NscaBatch batch) throws IOException {
+        try {
+            Object key = fileKey();
+            if (out==null || key==null || !key.equals(openedKey)) {
+                close();
+                out = new FileOutputStream(file, true);
+                openedKey = key;
+            }
+            long now = System.currentTimeMillis() / 1000L;
+            chunk.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                text.setLength(0);
+                text.append('[').append(now).append("] PROCESS_SERVICE_CHECK_RESULT;").append(channel.getReportingHost())
+                        .append(';').append(serviceName(batch, i)).append(';').append(batch.getLevel(i).getValue()).append(';');
+                appendOutput(batch.getMessage(i));
+                text.append('\n');
+                ByteBuffer line = encodeText();
+                if (line.remaining() > chunk.remaining())
+                    flush();
+                if (line.remaining() > chunk.remaining()) // longer than PIPE_BUF on its own
+                    out.write(line.array(), 0, line.limit());
+                else
+                    chunk.put(line);
+            }
+            flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** @return identity of the command file, which changes when Nagios recreates it */
+    private Object fileKey() throws IOException {
+        if (!file.exists())
+            throw new IOException("Nagios command file " + file + " does not exist; is check_external_commands enabled?");
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private void flush() throws IOException {
+        if (chunk.position()==0)
+            return;
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+    }
+
+    synchronized void close() {
+        if (out==null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing more can be done
+        }
+        out = null;
+        openedKey = null;
+    }
+}
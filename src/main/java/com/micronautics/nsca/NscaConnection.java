@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived connection from one channel to the NSCA daemon. The daemon keeps reading packets until the client closes
+ * the socket, just as <code>send_nsca</code> streams many results over one connection, so the TCP handshake, the daemon
+ * fork and the initialization vector exchange are paid once per connection instead of once per alert.
+ * <p>The connection is renegotiated (closed and reopened, which fetches a fresh initialization vector and server time
+ * stamp) when it has been idle longer than <code>idleTimeout</code>, when it is older than <code>maxAge</code>, or when
+ * a write fails. Each connect goes to a server chosen by the channel's {@link NscaServerPool}; if it fails, the next
+ * attempt goes to the next healthy server.</p>
+ * Callers must hold the {@link #lock() lock} while they use the connection. A ReentrantLock is used instead of
+ * a monitor because a virtual thread blocked on socket I/O while holding a monitor would pin its carrier thread. */
+class NscaConnection {
+    static final int INITIALIZATION_VECTOR_SIZE = 128;
+
+    private static Logger logger = LoggerFactory.getLogger(NscaConnection.class);
+
+    private final Nsca channel;
+    private final NscaServerPool servers;
+    private final int timeout;
+    private final int connectTimeout;
+    private final long idleTimeout;
+    private final long maxAge;
+
+    /** Server that the open connection goes to; null while closed */
+    private NscaServerPool.Server server;
+
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+
+    private final byte[] encryptionVector = new byte[INITIALIZATION_VECTOR_SIZE];
+
+    /** Created from encryptionVector for each new connection */
+    private NscaEncryptor encryptor;
+
+    /** Time stamp sent by the server during the handshake */
+    private int serverTime;
+
+    private long openedAt;
+    private long lastUsed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    NscaConnection(Nsca channel, NscaServerPool servers) {
+        this.channel = channel;
+        this.servers = servers;
+        this.timeout = channel.getTimeout();
+        this.connectTimeout = channel.getConnectTimeout();
+        this.idleTimeout = channel.getConnectionIdleTimeout();
+        this.maxAge = channel.getConnectionMaxAge();
+    }
+
+    void lock() { lock.lock(); }
+
+    void unlock() { lock.unlock(); }
+
+    /** @return true if a connection was already open and is still fresh enough to be reused */
+    boolean isReusable() {
+        if (socket==null)
+            return false;
+        long now = System.currentTimeMillis();
+        if (now - lastUsed > idleTimeout || now - openedAt > maxAge) {
+            if (logger.isDebugEnabled())
+                logger.debug("Renegotiating connection to " + server);
+            closeSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /** Opens the connection if necessary and reads the initialization vector and server time stamp.
+     * @return true if a previously opened connection is being reused */
+    boolean ensureOpen() throws IOException {
+        if (isReusable())
+            return true;
+
+        Exception lastException = null;
+        int tries = Math.max(3, servers.size()); // each failed connect moves on to the next healthy server
+        for (int count = 0; count < tries && socket==null; count++) {
+            NscaServerPool.Server candidate = servers.select();
+            NscaCircuitBreaker breaker = candidate.breaker;
+            if (breaker!=null) {
+                try {
+                    breaker.beforeConnect();
+                } catch (CircuitOpenException e) {
+                    if (lastException==null)
+                        lastException = e;
+                    break;
+                }
+            }
+            Socket s = new Socket();
+            long start = System.nanoTime();
+            try {
+                s.setKeepAlive(true);
+                s.setSoTimeout(timeout);
+                s.setTcpNoDelay(false);
+                s.connect(candidate.resolve(), connectTimeout);
+                DataInputStream din = new DataInputStream(s.getInputStream());
+                din.readFully(encryptionVector, 0, INITIALIZATION_VECTOR_SIZE); // Read the encryption initialization vector
+                serverTime = din.readInt();                                     // Read the server time stamp
+                encryptor = channel.newEncryptor(encryptionVector);
+                socket = s;
+                in = din;
+                out = s.getOutputStream();
+                server = candidate;
+                server.opened();
+                channel.getMetrics().getConnectLatency().record(System.nanoTime() - start);
+                if (breaker!=null)
+                    breaker.onSuccess();
+            } catch (Exception e) {
+                lastException = e;
+                closeQuietly(s);
+                if (breaker!=null)
+                    breaker.onFailure();
+            }
+        }
+        if (socket==null)
+            throw lastException instanceof IOException ? (IOException) lastException : new IOException(lastException);
+
+        openedAt = lastUsed = System.currentTimeMillis();
+        return false;
+    }
+
+    /** @return encryptor for the packets written to this connection; stateful, so only used by the lock holder */
+    NscaEncryptor getEncryptor() { return encryptor; }
+
+    /** @return server time stamp, advanced by the local time elapsed since the handshake so that packets sent late in
+     * the life of the connection are not rejected by the daemon's <code>max_packet_age</code> check */
+    int getTimestamp() {
+        return serverTime + (int) ((System.currentTimeMillis() - openedAt) / 1000L);
+    }
+
+    /** Writes the remaining bytes of <code>buffer</code>, which must be backed by an array */
+    void write(ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+        out.flush();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /** May be called without holding the lock; waits for a write in progress to finish */
+    void close() {
+        lock.lock();
+        try {
+            closeSocket();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeSocket() {
+        if (socket==null)
+            return;
+        try {
+            out.close();
+        } catch (Exception e) {
+            logger.warn("Exception while closing OutputStream: '" + e.getMessage());
+        }
+        try {
+            in.close();
+        } catch (Exception e) {
+            logger.warn("Exception while closing InputStream: '" + e.getMessage());
+        }
+        closeQuietly(socket);
+        server.closed();
+        server = null;
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (Exception e) {
+            logger.warn("Exception while closing socket: '" + e.getMessage());
+        }
+    }
+}
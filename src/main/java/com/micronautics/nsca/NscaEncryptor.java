@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts the packets sent over one connection to the NSCA daemon. A new encryptor is created for each connection,
+ * from the initialization vector that the daemon sent during the handshake; stream ciphers therefore carry their
+ * state from one packet to the next, exactly as the daemon's decryptor does.
+ * Implementations are not thread safe; callers serialize access the same way they serialize writes. */
+public interface NscaEncryptor {
+    /** Encrypts <code>length</code> bytes of <code>buffer</code> in place, starting at absolute index
+     * <code>offset</code>; <code>buffer</code> is backed by an array. */
+    void encrypt(ByteBuffer buffer, int offset, int length) throws GeneralSecurityException;
+
+    /** Creates the encryptor for each new connection. {@link Nsca.Encryption} implements this for the built in
+     * methods; other implementations can be named by the <code>encryptionProvider</code> configuration setting and
+     * must have a public no-argument constructor. */
+    public interface Provider {
+        /** @param encryptionVector the 128 byte initialization vector received from the server
+         * @param password the password shared with the NSCA daemon, possibly empty */
+        NscaEncryptor newEncryptor(byte[] encryptionVector, byte[] password) throws GeneralSecurityException;
+    }
+}
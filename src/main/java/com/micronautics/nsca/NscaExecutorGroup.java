@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named thread pool, or bulkhead, shared by the channels that select it with <code>executorGroup</code>. Each group has
+ * its own threads and task queue, so channels whose server is slow or unreachable can only exhaust their own group.
+ * Groups are created by the first channel that uses them, with the settings found in that channel's configuration;
+ * the "default" group is the pool that every channel used to share. */
+class NscaExecutorGroup {
+    static final String DEFAULT = "default";
+
+    private static final ConcurrentMap<String, NscaExecutorGroup> groups = new ConcurrentHashMap<String, NscaExecutorGroup>();
+
+    private final String name;
+    private final LinkedBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+
+    private NscaExecutorGroup(final String name, int threads, int maxThreads, int queueCapacity, long keepAlive) {
+        this.name = name;
+        queue = new LinkedBlockingQueue<Runnable>(queueCapacity);
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, Math.max(threads, maxThreads), keepAlive, TimeUnit.SECONDS, queue,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "nsca-" + name + "-" + count.incrementAndGet());
+                    }
+                });
+    }
+
+    /** @return the named group, created with the given settings if it does not exist yet */
+    static NscaExecutorGroup get(String name, int threads, int maxThreads, int queueCapacity, long keepAlive) {
+        NscaExecutorGroup group = groups.get(name);
+        if (group==null) {
+            synchronized (groups) {
+                group = groups.get(name);
+                if (group==null) {
+                    group = new NscaExecutorGroup(name, threads, maxThreads, queueCapacity, keepAlive);
+                    groups.put(name, group);
+                }
+            }
+        }
+        return group;
+    }
+
+    String getName() { return name; }
+
+    ThreadPoolExecutor getExecutor() { return executor; }
+
+    LinkedBlockingQueue<Runnable> getQueue() { return queue; }
+}
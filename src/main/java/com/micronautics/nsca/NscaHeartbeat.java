@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/**
+ * Periodic re-emission of the last known state of a service, for passive checks with freshness thresholds. Created by
+ * {@link Nsca#heartbeat(Nsca.NagiosMsgLevel, String, long)}; the shared timing wheel sends the current level and message
+ * every <code>interval</code> milliseconds until the heartbeat is cancelled. If the state was sent by other means in
+ * the meantime, the next heartbeat is postponed accordingly. */
+public class NscaHeartbeat {
+    private final Nsca channel;
+    private final String serviceName;
+    private final long interval;
+
+    /** Encoded service name; null when the heartbeat is for the channel's own service */
+    final byte[] service;
+
+    private volatile Nsca.NagiosMsgLevel level;
+    private volatile String message;
+
+    /** When the state was last sent, by the heartbeat or by the channel */
+    private volatile long lastSent = 0;
+
+    private volatile boolean cancelled = false;
+
+    /** Tick at which the timing wheel next considers this heartbeat; only used by the wheel's thread */
+    long deadline;
+
+    /** Next heartbeat in the same timing wheel slot; only used by the wheel's thread */
+    NscaHeartbeat next;
+
+    /** Next heartbeat of the same channel that is due in the current tick; only used by the wheel's thread */
+    NscaHeartbeat nextDue;
+
+    NscaHeartbeat(Nsca channel, String serviceName, byte[] service, Nsca.NagiosMsgLevel level, String message, long interval) {
+        this.channel = channel;
+        this.serviceName = serviceName;
+        this.service = service;
+        this.level = level;
+        this.message = message;
+        this.interval = Math.max(1, interval);
+    }
+
+    /** Records the current state of the service; it is sent by the next heartbeat */
+    public void update(Nsca.NagiosMsgLevel msgLevel, String message) {
+        this.level = msgLevel;
+        this.message = message;
+    }
+
+    /** Stops the heartbeat; it is removed from the timing wheel when it next comes due */
+    public void cancel() { cancelled = true; }
+
+    public boolean isCancelled() { return cancelled; }
+
+    public Nsca.NagiosMsgLevel getLevel() { return level; }
+
+    public String getMessage() { return message; }
+
+    public String getService() { return serviceName; }
+
+    /** @return milliseconds between heartbeats */
+    public long getInterval() { return interval; }
+
+    Nsca getChannel() { return channel; }
+
+    long getLastSent() { return lastSent; }
+
+    /** Called when the state has just been sent */
+    void sent(Nsca.NagiosMsgLevel msgLevel, String message, long now) {
+        update(msgLevel, message);
+        lastSent = now;
+    }
+
+    void markSent(long now) { lastSent = now; }
+
+    /** Called by the timing wheel's thread when the heartbeat is about to be sent, before <code>lastSent</code> is
+     * updated; lets subclasses compute the state to send */
+    void due(long now) { }
+}
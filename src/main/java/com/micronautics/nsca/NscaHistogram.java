@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram: each power of two is split into
+ * 32 buckets, so recorded values are reported within about 3% of their true value, from 0 up to Long.MAX_VALUE, in a
+ * fixed 15KB. Recording is a few atomic increments and never allocates, so it is always on; readers see a snapshot
+ * that may be slightly behind concurrent recorders. Values recorded here are also recorded in the parent histogram,
+ * which holds the totals of every channel. */
+public class NscaHistogram implements NscaHistogramMBean {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS; // values have at most 63 bits
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final NscaHistogram parent;
+
+    NscaHistogram(NscaHistogram parent) {
+        this.parent = parent;
+    }
+
+    /** @param value a duration in nanoseconds; negative values are recorded as 0 */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+        if (parent!=null)
+            parent.record(value);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /** @return largest value that falls in the bucket at <code>index</code> */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count==0 ? 0 : (double) total.sum() / count;
+    }
+
+    public long getMax() { return max.get(); }
+
+    /** @param percentile between 0 and 100
+     * @return value below which <code>percentile</code> percent of the recorded values fall, or 0 if none were recorded */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count==0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getP50() { return getValueAtPercentile(50); }
+
+    public long getP90() { return getValueAtPercentile(90); }
+
+    public long getP99() { return getValueAtPercentile(99); }
+
+    public long getP999() { return getValueAtPercentile(99.9); }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes metrics as MBeans of the platform MBean server: <code>com.micronautics.nsca:type=Channel,name=...,id=N</code>
+ * for the counters and gauges, and one <code>type=Histogram</code> MBean per latency histogram, with the same name and
+ * id. The id tells apart channels that have the same name. */
+class NscaJmxRegistry implements NscaMetricsRegistry {
+    private static Logger logger = LoggerFactory.getLogger(NscaJmxRegistry.class);
+
+    static final String DOMAIN = "com.micronautics.nsca";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<NscaMetrics, List<ObjectName>> registered = new ConcurrentHashMap<NscaMetrics, List<ObjectName>>();
+
+    public void register(String name, NscaMetrics metrics) {
+        String keys = ",name=" + ObjectName.quote(name) + ",id=" + ids.incrementAndGet();
+        List<ObjectName> names = new ArrayList<ObjectName>(4);
+        try {
+            names.add(register(metrics, "type=Channel" + keys));
+            names.add(register(metrics.getConnectLatency(), "type=Histogram" + keys + ",histogram=connectLatency"));
+            names.add(register(metrics.getRoundTripLatency(), "type=Histogram" + keys + ",histogram=roundTripLatency"));
+            names.add(register(metrics.getEncodeTime(), "type=Histogram" + keys + ",histogram=encodeTime"));
+        } catch (Exception e) {
+            logger.warn("Unable to register the metrics of " + name + " with JMX: " + e.getMessage());
+        }
+        registered.put(metrics, names);
+    }
+
+    private ObjectName register(Object mbean, String properties) throws Exception {
+        ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+        server.registerMBean(mbean, objectName);
+        return objectName;
+    }
+
+    public void unregister(NscaMetrics metrics) {
+        List<ObjectName> names = registered.remove(metrics);
+        if (names==null)
+            return;
+        for (ObjectName objectName : names) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.warn("Unable to unregister " + objectName + ": " + e.getMessage());
+            }
+        }
+    }
+}
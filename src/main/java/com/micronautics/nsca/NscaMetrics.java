@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of one channel, or of all channels for {@link #getGlobal()}. Counters are
+ * striped (LongAdder) and histograms are lock-free, so that recording costs a few uncontended atomic operations and
+ * can be left on in production; everything recorded for a channel is also recorded in the global metrics. Gauges are
+ * read from the channel when asked for. Published through the {@link NscaMetricsRegistry} chosen by the
+ * <code>metricsRegistry</code> setting, which defaults to JMX.
+ * <p>Metrics only reference their channel weakly, so that neither the global gauges nor a registry keep a channel alive
+ * that its users dropped without closing it; such metrics are unregistered once the channel has been collected.</p> */
+public class NscaMetrics implements NscaMetricsMBean {
+    private static final NscaMetrics global = new NscaMetrics(null, null);
+
+    /** Metrics of the channels that have been neither closed nor collected, for the global gauges */
+    private static final Set<NscaMetrics> open = ConcurrentHashMap.newKeySet();
+
+    /** Receives the references of channels that were collected without being closed */
+    private static final ReferenceQueue<Nsca> collected = new ReferenceQueue<Nsca>();
+
+    /** Null for the global metrics */
+    private final ChannelReference channel;
+    private final NscaMetrics parent;
+
+    /** Registry these metrics are published in; null if they are not */
+    private volatile NscaMetricsRegistry registry;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    private final NscaHistogram connectLatency;
+    private final NscaHistogram roundTripLatency;
+    private final NscaHistogram encodeTime;
+
+    private static class ChannelReference extends WeakReference<Nsca> {
+        final NscaMetrics metrics;
+
+        ChannelReference(Nsca channel, NscaMetrics metrics) {
+            super(channel, collected);
+            this.metrics = metrics;
+        }
+    }
+
+    private NscaMetrics(Nsca channel, NscaMetrics parent) {
+        this.channel = channel==null ? null : new ChannelReference(channel, this);
+        this.parent = parent;
+        connectLatency = new NscaHistogram(parent==null ? null : parent.connectLatency);
+        roundTripLatency = new NscaHistogram(parent==null ? null : parent.roundTripLatency);
+        encodeTime = new NscaHistogram(parent==null ? null : parent.encodeTime);
+    }
+
+    static NscaMetrics forChannel(Nsca channel) {
+        expunge();
+        NscaMetrics metrics = new NscaMetrics(channel, global);
+        open.add(metrics);
+        return metrics;
+    }
+
+    /** @return totals of every channel in this JVM */
+    public static NscaMetrics getGlobal() { return global; }
+
+    /** Publishes these metrics under <code>name</code>; they are unregistered when the channel is closed or collected */
+    void publish(NscaMetricsRegistry registry, String name) {
+        registry.register(name, this);
+        this.registry = registry;
+    }
+
+    void closed() {
+        open.remove(this);
+        NscaMetricsRegistry published = registry;
+        registry = null;
+        if (published!=null)
+            published.unregister(this);
+    }
+
+    /** Forgets the metrics of channels that were collected without being closed */
+    private static void expunge() {
+        Reference<? extends Nsca> reference;
+        while ((reference = collected.poll())!=null)
+            ((ChannelReference) reference).metrics.closed();
+    }
+
+    void enqueued() {
+        enqueued.increment();
+        if (parent!=null)
+            parent.enqueued();
+    }
+
+    void sent(int count) {
+        sent.add(count);
+        if (parent!=null)
+            parent.sent(count);
+    }
+
+    void failed(int count) {
+        failed.add(count);
+        if (parent!=null)
+            parent.failed(count);
+    }
+
+    void dropped() {
+        dropped.increment();
+        if (parent!=null)
+            parent.dropped();
+    }
+
+    void spooled(int count) {
+        spooled.add(count);
+        if (parent!=null)
+            parent.spooled(count);
+    }
+
+    /** @param attempts number of times a batch was written; every attempt after the first is a retry */
+    void attempts(int attempts) {
+        if (attempts <= 1)
+            return;
+        retries.add(attempts - 1);
+        if (parent!=null)
+            parent.attempts(attempts);
+    }
+
+    /** @return number of messages accepted by the queue */
+    public long getEnqueuedCount() { return enqueued.sum(); }
+
+    /** @return number of messages written to an NSCA server */
+    public long getSentCount() { return sent.sum(); }
+
+    /** @return number of messages given up on */
+    public long getFailedCount() { return failed.sum(); }
+
+    /** @return number of messages dropped because the queue, and the spool if any, were full */
+    public long getDroppedCount() { return dropped.sum(); }
+
+    /** @return number of messages written to the spool instead of a server */
+    public long getSpooledCount() { return spooled.sum(); }
+
+    /** @return number of times a batch was written again on a fresh connection */
+    public long getRetryCount() { return retries.sum(); }
+
+    /** @return number of messages waiting to be delivered */
+    public long getQueueDepth() {
+        if (channel!=null) {
+            Nsca nsca = channel.get();
+            return nsca==null ? 0 : nsca.pendingCount();
+        }
+        expunge();
+        long depth = 0;
+        for (NscaMetrics metrics : open)
+            depth += metrics.getQueueDepth();
+        return depth;
+    }
+
+    /** @return number of open connections to NSCA servers */
+    public long getActiveConnections() {
+        if (channel!=null) {
+            Nsca nsca = channel.get();
+            return nsca==null ? 0 : nsca.getServerPool().getOutstanding();
+        }
+        expunge();
+        long connections = 0;
+        for (NscaMetrics metrics : open)
+            connections += metrics.getActiveConnections();
+        return connections;
+    }
+
+    /** @return nanoseconds taken to connect to a server and read its handshake */
+    public NscaHistogram getConnectLatency() { return connectLatency; }
+
+    /** @return nanoseconds from taking a batch off the queue until it has been written, including connects and retries */
+    public NscaHistogram getRoundTripLatency() { return roundTripLatency; }
+
+    /** @return nanoseconds taken to encode and encrypt a batch */
+    public NscaHistogram getEncodeTime() { return encodeTime; }
+}
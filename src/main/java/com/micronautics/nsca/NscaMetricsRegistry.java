@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/**
+ * Destination of the metrics of each channel, selected with the <code>metricsRegistry</code> setting: "jmx" (the
+ * default), "none", or the name of a class implementing this interface with a public no-argument constructor. One
+ * instance of each class is created, and the global metrics are registered with it before any channel. */
+public interface NscaMetricsRegistry {
+    /** @param name "global", or "service@host:port" of a channel; channels with the same name may coexist */
+    void register(String name, NscaMetrics metrics);
+
+    /** Called when a channel is closed */
+    void unregister(NscaMetrics metrics);
+}
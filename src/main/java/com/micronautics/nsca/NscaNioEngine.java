@@ -0,0 +1,538 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivery engine that multiplexes the NSCA connections of every channel over a few selector threads, so that
+ * thousands of concurrent deliveries do not each park a thread. Each channel is represented by an {@link Endpoint},
+ * which drives the connect, initialization vector handshake, batched packet writes and timeouts as a state machine.
+ * All of an endpoint's state is confined to the thread of the event loop it was assigned to; other threads only
+ * {@link Endpoint#signal() signal} it. Shared amongst all channels that select <code>deliveryEngine = nio</code>. */
+class NscaNioEngine {
+    private static Logger logger = LoggerFactory.getLogger(NscaNioEngine.class);
+
+    private static NscaNioEngine instance;
+
+    private final EventLoop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Resolves server addresses that are not cached yet, so that DNS lookups never block an event loop */
+    private static final ExecutorService resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "nsca-nio-resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** @param threads number of event loop threads; only honored by the first call */
+    static synchronized NscaNioEngine getInstance(int threads) throws IOException {
+        if (instance==null)
+            instance = new NscaNioEngine(threads);
+        return instance;
+    }
+
+    private NscaNioEngine(int threads) throws IOException {
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nsca-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Assigns the channel to one of the event loops, round-robin */
+    Endpoint register(Nsca channel) {
+        EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        return new Endpoint(channel, loop);
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+
+        /** Endpoints that were signalled since the last iteration */
+        private final Queue<Endpoint> signalled = new ConcurrentLinkedQueue<Endpoint>();
+
+        /** Endpoints that have been signalled and are not closed and idle yet; only touched by the loop thread */
+        private final Set<Endpoint> endpoints = new HashSet<Endpoint>();
+
+        /** Earliest time at which some endpoint has a timer due; only touched by the loop thread */
+        private long nextSweep = Long.MAX_VALUE;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void signal(Endpoint endpoint) {
+            signalled.add(endpoint);
+            selector.wakeup();
+        }
+
+        /** Called by endpoints on the loop thread whenever they arm a timer */
+        void schedule(long time) {
+            if (time < nextSweep)
+                nextSweep = time;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    long now = System.currentTimeMillis();
+                    if (nextSweep==Long.MAX_VALUE)
+                        selector.select();
+                    else if (nextSweep > now)
+                        selector.select(nextSweep - now);
+                    else
+                        selector.selectNow();
+
+                    // endpoints that signal themselves again are served on the next iteration, after the others
+                    Endpoint endpoint;
+                    for (int n = signalled.size(); n > 0 && (endpoint = signalled.poll()) != null; n--) {
+                        endpoint.signalled.set(false);
+                        endpoints.add(endpoint);
+                        endpoint.onSignal();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Endpoint) key.attachment()).onReady(key);
+                    }
+
+                    now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        nextSweep = Long.MAX_VALUE;
+                        Iterator<Endpoint> i = endpoints.iterator();
+                        while (i.hasNext()) {
+                            Endpoint e = i.next();
+                            e.onTick(now);
+                            if (e.isIdle())
+                                i.remove(); // signalling it adds it back
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.warn("Nsca NIO event loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Connection state machine for one channel */
+    static class Endpoint {
+        private enum State { CLOSED, CONNECTING, HANDSHAKE, READY, WRITING }
+
+        private static final int CONNECT_ATTEMPTS = 3;
+
+        /** Batches written per turn of the event loop before other endpoints are served */
+        private static final int MAX_BATCHES_PER_TURN = 16;
+
+        private final Nsca channel;
+        private final EventLoop loop;
+        private final int maxCount;
+
+        /** Set while this endpoint is in its loop's signalled queue */
+        private final AtomicBoolean signalled = new AtomicBoolean(false);
+
+        private volatile boolean closeRequested = false;
+
+        private State state = State.CLOSED;
+        private SocketChannel socket;
+        private SelectionKey key;
+
+        private final ByteBuffer handshake = ByteBuffer.allocate(NscaConnection.INITIALIZATION_VECTOR_SIZE + 4);
+        private final byte[] encryptionVector = new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE];
+        private NscaEncryptor encryptor;
+        private int serverTime;
+        private long openedAt;
+        private long lastUsed;
+
+        /** When the current connect started, for the connect latency */
+        private long connectStartNanos;
+
+        /** Absolute time at which the current connect, handshake or write times out; 0 when none is in progress */
+        private long deadline = 0;
+
+        /** Absolute time at which a partial batch is sent anyway; 0 when not lingering */
+        private long lingerUntil = 0;
+
+        /** Messages being written; retained until the write completes so they can be resent on a fresh connection */
+        private final NscaBatch batch;
+        private final NscaPacketEncoder encoder;
+        private final ByteBuffer out;
+
+        /** True if the batch is being written over a connection that has already carried packets */
+        private boolean reused = false;
+        private boolean written = false;
+
+        /** Number of times the current batch has been written, for DeliveryResult */
+        private int attempts = 0;
+
+        /** True while the batch is not empty; read by other threads to implement <code>flush()</code> */
+        private volatile boolean busy = false;
+        private int failures = 0;
+
+        /** Sink for anything the server sends after the handshake; a read of -1 means it closed the connection */
+        private final ByteBuffer discard = ByteBuffer.allocate(64);
+
+        /** Server of the connection being opened or in use; null while closed */
+        private NscaServerPool.Server server;
+
+        /** True once the handshake with server has completed, so that it counts as an open connection */
+        private boolean counted = false;
+
+        /** Signals this endpoint once a server address it waits for has been resolved */
+        private final Runnable resolved = new Runnable() {
+            public void run() { signal(); }
+        };
+
+        Endpoint(Nsca channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.maxCount = channel.getMaxBatchCount();
+            this.batch = new NscaBatch(maxCount);
+            this.encoder = channel.newPacketEncoder();
+            this.out = ByteBuffer.allocate(maxCount * Nsca.PACKET_SIZE);
+        }
+
+        /** Tells the event loop that messages are pending; may be called from any thread */
+        void signal() {
+            if (signalled.compareAndSet(false, true))
+                loop.signal(this);
+        }
+
+        /** Closes the connection once the write in progress, if any, has completed; the endpoint then leaves the event
+         * loop until it is signalled again */
+        void close() {
+            closeRequested = true;
+            signal();
+        }
+
+        /** @return true while a batch is being delivered; may be called from any thread */
+        boolean isBusy() { return busy; }
+
+        /** @return true if there is no connection, batch or timer, so the event loop need not sweep this endpoint */
+        private boolean isIdle() {
+            return state==State.CLOSED && batch.isEmpty() && deadline==0 && lingerUntil==0;
+        }
+
+        private void onSignal() {
+            pump(System.currentTimeMillis());
+        }
+
+        /** Moves the state machine forward: connects when there is work, or encodes and writes batches until a write is
+         * left in progress. After MAX_BATCHES_PER_TURN batches the endpoint signals itself instead of writing more, so
+         * that a busy channel cannot starve the other endpoints of its event loop. */
+        private void pump(long now) {
+            if (closeRequested && state!=State.WRITING) {
+                closeRequested = false;
+                if (state==State.READY)
+                    closeSocket();
+                loop.schedule(now); // the next sweep drops this endpoint if it is idle
+            }
+            switch (state) {
+                case CLOSED:
+                    if (!batch.isEmpty() || channel.hasPending())
+                        connect(now);
+                    break;
+
+                case READY:
+                    for (int batches = 0; state==State.READY; batches++) {
+                        if (batch.isEmpty()) {
+                            if (!channel.hasPending())
+                                return;
+                            if (batches==MAX_BATCHES_PER_TURN) {
+                                signal();
+                                return;
+                            }
+                            if (now - lastUsed > channel.getConnectionIdleTimeout() || now - openedAt > channel.getConnectionMaxAge()) {
+                                closeSocket();
+                                connect(now);
+                                return;
+                            }
+                            if (channel.getBatchLinger() > 0 && channel.pendingCount() < maxCount) {
+                                if (lingerUntil==0) {
+                                    lingerUntil = now + channel.getBatchLinger();
+                                    loop.schedule(lingerUntil);
+                                }
+                                if (now < lingerUntil)
+                                    return;
+                            }
+                            lingerUntil = 0;
+                            busy = true; // before draining, so that flush() never sees an empty queue and an idle endpoint
+                            channel.drainPending(batch, maxCount);
+                            if (batch.isEmpty()) {
+                                busy = false;
+                                channel.idle();
+                                return;
+                            }
+                            attempts = 0;
+                        }
+                        reused = written;
+                        attempts++;
+                        try {
+                            int timestamp = serverTime + (int) ((now - openedAt) / 1000L);
+                            channel.encodeBatch(batch, encoder, timestamp, encryptor, out);
+                            state = State.WRITING;
+                            write(now); // back to READY if the whole batch was written
+                        } catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                    break;
+
+                default: // an operation is in progress; it pumps again when it completes
+                    break;
+            }
+        }
+
+        private void connect(long now) {
+            server = channel.getServerPool().select();
+            InetSocketAddress address = server.resolve(resolver, resolved);
+            if (address==null) { // first lookup of this server; connects once it completes
+                server = null;
+                return;
+            }
+            if (server.breaker!=null) {
+                try {
+                    server.breaker.beforeConnect();
+                } catch (CircuitOpenException e) {
+                    reject(e);
+                    return;
+                }
+            }
+            try {
+                socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                socket.socket().setKeepAlive(true);
+                socket.socket().setTcpNoDelay(false);
+                key = socket.register(loop.selector, 0, this);
+                handshake.clear();
+                written = false;
+                connectStartNanos = System.nanoTime();
+                arm(now + channel.getConnectTimeout());
+                if (socket.connect(address)) {
+                    startHandshake();
+                } else {
+                    state = State.CONNECTING;
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void startHandshake() {
+            arm(System.currentTimeMillis() + channel.getTimeout());
+            state = State.HANDSHAKE;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void onReady(SelectionKey key) {
+            long now = System.currentTimeMillis();
+            try {
+                if (!key.isValid())
+                    return;
+                switch (state) {
+                    case CONNECTING:
+                        if (key.isConnectable() && socket.finishConnect())
+                            startHandshake();
+                        break;
+
+                    case HANDSHAKE:
+                        if (socket.read(handshake) < 0)
+                            throw new EOFException("connection closed by NSCA server during handshake");
+                        if (!handshake.hasRemaining()) {
+                            handshake.flip();
+                            handshake.get(encryptionVector);     // the encryption initialization vector
+                            serverTime = handshake.getInt();    // the server time stamp
+                            encryptor = channel.newEncryptor(encryptionVector);
+                            openedAt = lastUsed = now;
+                            failures = 0;
+                            server.opened();
+                            counted = true;
+                            channel.getMetrics().getConnectLatency().record(System.nanoTime() - connectStartNanos);
+                            if (server.breaker!=null)
+                                server.breaker.onSuccess();
+                            deadline = 0;
+                            state = State.READY;
+                            pump(now);
+                        }
+                        break;
+
+                    case READY:
+                    case WRITING:
+                        if (key.isReadable()) {
+                            discard.clear();
+                            if (socket.read(discard) < 0)
+                                throw new EOFException("connection closed by NSCA server");
+                        }
+                        if (state==State.WRITING && key.isWritable()) {
+                            write(now);
+                            if (state==State.READY)
+                                pump(now);
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /** Writes what remains of the batch; once all of it is written the batch is delivered and the state is READY */
+        private void write(long now) throws IOException {
+            socket.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                arm(now + channel.getTimeout());
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            channel.delivered(batch, attempts);
+            batch.clear();
+            busy = false;
+            channel.idle();
+            deadline = 0;
+            lastUsed = now;
+            written = true;
+            state = State.READY;
+            loop.schedule(lastUsed + channel.getConnectionIdleTimeout());
+        }
+
+        private void onTick(long now) {
+            if (deadline!=0) {
+                if (now >= deadline) {
+                    fail(new SocketTimeoutException("Timed out in state " + state));
+                    return;
+                }
+                loop.schedule(deadline);
+            }
+            if (lingerUntil!=0) {
+                if (now >= lingerUntil)
+                    pump(now);
+                else
+                    loop.schedule(lingerUntil);
+            }
+            if (state==State.READY && batch.isEmpty()) {
+                if (now - lastUsed > channel.getConnectionIdleTimeout())
+                    closeSocket();
+                else
+                    loop.schedule(lastUsed + channel.getConnectionIdleTimeout());
+            }
+        }
+
+        private void arm(long time) {
+            deadline = time;
+            loop.schedule(time);
+        }
+
+        /** Retries a failed write once on a fresh connection, retries failed connects up to CONNECT_ATTEMPTS times or
+         * once per server, whichever is more, then gives up on the batch. The next attempt is made on a later iteration
+         * of the event loop, and goes to the next healthy server. */
+        private void fail(Exception e) {
+            boolean retryWrite = state==State.WRITING && reused;
+            if (server!=null && server.breaker!=null && state!=State.READY && state!=State.WRITING)
+                server.breaker.onFailure();
+            closeSocket();
+            if (retryWrite) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Reused connection failed (" + e.getMessage() + "); reconnecting");
+            } else if (++failures >= Math.max(CONNECT_ATTEMPTS, channel.getServerPool().size()) || !batch.isEmpty()) {
+                failures = 0;
+                if (batch.isEmpty()) {
+                    busy = true;
+                    channel.drainPending(batch, maxCount);
+                    attempts = 1;
+                }
+                channel.undeliverable(batch, attempts, e);
+                batch.clear();
+                busy = false;
+                channel.idle();
+            }
+            if (!batch.isEmpty() || channel.hasPending())
+                signal();
+        }
+
+        /** Fails the batch, and what is pending, without connecting while the circuit is open. Like pump(), it fails at
+         * most MAX_BATCHES_PER_TURN batches and then signals itself, so that senders which keep producing cannot hold
+         * the event loop; a message whose slot is claimed but not yet published is left to its producer's signal. */
+        private void reject(CircuitOpenException e) {
+            busy = true;
+            int batches = 0;
+            for (; batches < MAX_BATCHES_PER_TURN; batches++) {
+                if (batch.isEmpty()) {
+                    channel.drainPending(batch, maxCount);
+                    attempts = 0;
+                    if (batch.isEmpty())
+                        break;
+                }
+                channel.undeliverable(batch, attempts, e);
+                batch.clear();
+            }
+            busy = false;
+            channel.idle();
+            failures = 0;
+            if (batches==MAX_BATCHES_PER_TURN && channel.hasPending())
+                signal();
+        }
+
+        private void closeSocket() {
+            if (socket!=null) {
+                try {
+                    socket.close(); // also cancels the key
+                } catch (Exception e) {
+                    logger.warn("Exception while closing socket channel: '" + e.getMessage());
+                }
+            }
+            if (counted)
+                server.closed();
+            counted = false;
+            server = null;
+            socket = null;
+            key = null;
+            deadline = 0;
+            lingerUntil = 0;
+            state = State.CLOSED;
+        }
+    }
+}
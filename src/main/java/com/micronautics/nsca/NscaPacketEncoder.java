@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes NSCA version 3 data packets for one channel without allocating. The version, reporting host and service
+ * name never change for a channel, so they are encoded once into a template that is copied into each packet; the
+ * time stamp, return code and plugin output are then filled in and the CRC is computed with a reused {@link CRC32}.
+ * <p>Packet layout (720 bytes, big-endian):</p><pre>
+ *   0 int16  version         2 (padding)    4 uint32 crc32     8 uint32 timestamp    12 int16 return code
+ *  14 char[64] host name    78 char[128] service name    206 char[512] plugin output    718 (padding)</pre>
+ * Instances are not thread safe; each sender uses its own, or is the only sender for its channel. */
+class NscaPacketEncoder {
+    static final int PACKET_SIZE = 720;
+
+    private static final int CRC_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int RETURN_CODE_OFFSET = 12;
+    private static final int HOST_OFFSET = 14;
+    private static final int HOST_LENGTH = 64;
+    private static final int SERVICE_OFFSET = HOST_OFFSET + HOST_LENGTH;
+    private static final int SERVICE_LENGTH = 128;
+    private static final int OUTPUT_OFFSET = SERVICE_OFFSET + SERVICE_LENGTH;
+    private static final int OUTPUT_LENGTH = 512;
+
+    /** Version, host and service with zeroes everywhere else */
+    private final byte[] template = new byte[PACKET_SIZE];
+
+    private final CRC32 crc = new CRC32();
+
+    private final CharsetEncoder encoder;
+
+    /** True if characters below 0x80 encode to themselves, which allows the common case to skip the CharsetEncoder */
+    private final boolean asciiCompatible;
+
+    /** Characters of the message being encoded; a message cannot produce more bytes than it has characters */
+    private final char[] chars = new char[OUTPUT_LENGTH];
+    private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+    NscaPacketEncoder(int nscaVersion, String reportingHost, String nscaService, Charset charset) {
+        encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        String name = charset.name();
+        asciiCompatible = name.equals("UTF-8") || name.equals("US-ASCII") || name.equals("ISO-8859-1");
+
+        template[0] = (byte) ((nscaVersion >> 8) & 0xff);
+        template[1] = (byte) (nscaVersion & 0xff);
+        putString(null == reportingHost ? "UNKNOWN" : reportingHost, template, HOST_OFFSET, HOST_LENGTH, charset);
+        putString(null == nscaService ? "UNKNOWN" : nscaService, template, SERVICE_OFFSET, SERVICE_LENGTH, charset);
+    }
+
+    /** Encodes one unencrypted packet at the position of <code>dest</code>, which must be backed by an array, and
+     * advances the position past it.
+     * @param serverTime time stamp to echo back to the server */
+    void encode(Nsca.NagiosMsgLevel msgLevel, String message, int serverTime, ByteBuffer dest) {
+        encode(msgLevel, null, message, serverTime, dest);
+    }
+
+    /** @param service result of {@link #encodeService(String, Charset)} to report on another service than the channel's,
+     * or null */
+    void encode(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, int serverTime, ByteBuffer dest) {
+        byte[] alert = dest.array();
+        int start = dest.arrayOffset() + dest.position();
+
+        System.arraycopy(template, 0, alert, start, PACKET_SIZE);
+        if (service!=null)
+            System.arraycopy(service, 0, alert, start + SERVICE_OFFSET, SERVICE_LENGTH);
+
+        // echo the time read from the server
+        alert[start + TIMESTAMP_OFFSET]     = (byte) ((serverTime >> 24) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 1] = (byte) ((serverTime >> 16) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 2] = (byte) ((serverTime >> 8) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 3] = (byte) (serverTime & 0xff);
+
+        // the code associated with the alert
+        int code = msgLevel.getValue();
+        alert[start + RETURN_CODE_OFFSET]     = (byte) ((code >> 8) & 0xff);
+        alert[start + RETURN_CODE_OFFSET + 1] = (byte) (code & 0xff);
+
+        putOutput(message, dest, start + OUTPUT_OFFSET);
+
+        putCrc(alert, start, crc(alert, start));
+
+        dest.position(dest.position() + PACKET_SIZE);
+    }
+
+    /** Replaces the time stamp of an unencrypted packet that starts at absolute index <code>offset</code> of
+     * <code>buffer</code>, which must be backed by an array, and recomputes its CRC */
+    void restamp(ByteBuffer buffer, int offset, int serverTime) {
+        byte[] alert = buffer.array();
+        int start = buffer.arrayOffset() + offset;
+        alert[start + TIMESTAMP_OFFSET]     = (byte) ((serverTime >> 24) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 1] = (byte) ((serverTime >> 16) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 2] = (byte) ((serverTime >> 8) & 0xff);
+        alert[start + TIMESTAMP_OFFSET + 3] = (byte) (serverTime & 0xff);
+        putCrc(alert, start, 0);
+        putCrc(alert, start, crc(alert, start));
+    }
+
+    /** @return true if the CRC of the unencrypted packet at absolute index <code>offset</code> of
+     * <code>buffer</code>, which must be backed by an array, matches its contents */
+    boolean isValid(ByteBuffer buffer, int offset) {
+        byte[] alert = buffer.array();
+        int start = buffer.arrayOffset() + offset;
+        long expected = ((alert[start + CRC_OFFSET] & 0xffL) << 24) | ((alert[start + CRC_OFFSET + 1] & 0xffL) << 16) |
+                ((alert[start + CRC_OFFSET + 2] & 0xffL) << 8) | (alert[start + CRC_OFFSET + 3] & 0xffL);
+        putCrc(alert, start, 0);
+        long actual = crc(alert, start);
+        putCrc(alert, start, expected);
+        return actual==expected;
+    }
+
+    /** The crc is calculated with zeroes in the crc field */
+    private long crc(byte[] alert, int start) {
+        crc.reset();
+        crc.update(alert, start, PACKET_SIZE);
+        return crc.getValue();
+    }
+
+    private static void putCrc(byte[] alert, int start, long crcValue) {
+        alert[start + CRC_OFFSET]     = (byte) ((crcValue >> 24) & 0xff);
+        alert[start + CRC_OFFSET + 1] = (byte) ((crcValue >> 16) & 0xff);
+        alert[start + CRC_OFFSET + 2] = (byte) ((crcValue >> 8) & 0xff);
+        alert[start + CRC_OFFSET + 3] = (byte)  (crcValue & 0xff);
+    }
+
+    /** Writes the plugin output, truncated to OUTPUT_LENGTH bytes, into the packet at absolute array index
+     * <code>offset</code>. NSCA doesn't handle line feeds very well, so they are removed. */
+    private void putOutput(String message, ByteBuffer dest, int offset) {
+        if (null == message)
+            message = "<null>";
+        int length = Math.min(message.length(), chars.length);
+        message.getChars(0, length, chars, 0);
+        int count = 0;
+        boolean ascii = asciiCompatible;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c == '\n')
+                continue;
+            chars[count++] = c;
+            if (c >= 0x80)
+                ascii = false;
+        }
+
+        if (ascii) {
+            byte[] alert = dest.array();
+            for (int i = 0; i < count; i++)
+                alert[offset + i] = (byte) chars[i];
+            return;
+        }
+
+        int position = dest.position();
+        int limit = dest.limit();
+        charBuffer.clear();
+        charBuffer.limit(count);
+        dest.limit(offset - dest.arrayOffset() + OUTPUT_LENGTH);
+        dest.position(offset - dest.arrayOffset());
+        encoder.reset();
+        encoder.encode(charBuffer, dest, true); // stops at a character boundary when the field is full
+        dest.limit(limit);
+        dest.position(position);
+    }
+
+    /** @return service name in its packet field, zero padded, so that it can be copied into many packets */
+    static byte[] encodeService(String nscaService, Charset charset) {
+        byte[] field = new byte[SERVICE_LENGTH];
+        putString(nscaService, field, 0, SERVICE_LENGTH, charset);
+        return field;
+    }
+
+    /** Only used while building the template, so it may allocate */
+    private static void putString(String value, byte[] buffer, int offset, int length, Charset charset) {
+        byte[] bytes = value.getBytes(charset);
+        System.arraycopy(bytes, 0, buffer, offset, Math.min(bytes.length, length));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/**
+ * Appends Nagios performance data (<code>label=value;warn;crit</code>) and fixed-point numbers to a StringBuilder,
+ * without String.format, boxing or intermediate strings, so that formatting a result allocates nothing beyond the
+ * builder's own growth. */
+final class NscaPerfData {
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+    private NscaPerfData() { }
+
+    /** Appends <code>label=value;warning;critical</code>; thresholds of 0 or less are left out */
+    static StringBuilder appendMetric(StringBuilder sb, String label, long value, long warning, long critical) {
+        appendLabel(sb, label).append('=').append(value);
+        if (warning > 0 || critical > 0) {
+            sb.append(';');
+            if (warning > 0)
+                sb.append(warning);
+            sb.append(';');
+            if (critical > 0)
+                sb.append(critical);
+        }
+        return sb;
+    }
+
+    /** Appends the label, quoted if it contains spaces, '=' or quotes, as the plugin guidelines require */
+    static StringBuilder appendLabel(StringBuilder sb, String label) {
+        boolean quote = false;
+        for (int i = 0; i < label.length() && !quote; i++) {
+            char c = label.charAt(i);
+            quote = c==' ' || c=='=' || c=='\'';
+        }
+        if (!quote)
+            return sb.append(label);
+        sb.append('\'');
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c=='\'')
+                sb.append('\'');
+            sb.append(c);
+        }
+        return sb.append('\'');
+    }
+
+    /** Appends <code>value</code> rounded to <code>decimals</code> (at most 6) digits after the point, or "U", which
+     * Nagios reads as undetermined, if it is not a finite number */
+    static StringBuilder appendFixed(StringBuilder sb, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return sb.append('U');
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled!=0)
+            sb.append('-');
+        sb.append(scaled / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = scaled % scale;
+            for (long power = scale / 10; power > 0; power /= 10) {
+                sb.append((char) ('0' + fraction / power));
+                fraction %= power;
+            }
+        }
+        return sb;
+    }
+}
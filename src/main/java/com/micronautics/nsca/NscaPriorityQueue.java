@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Separate lanes per {@link Nsca.NagiosMsgLevel}, drained in order of severity (CRITICAL, UNKNOWN, WARN, then OK),
+ * so that alerts which page someone are not stuck behind a backlog of heartbeats. Each lane is its own
+ * {@link NscaRingBuffer} with its own capacity, so a flood of one level cannot crowd out another.
+ * <p>Starvation protection: a lane that still holds messages after being passed over by <code>starvationLimit</code>
+ * consecutive drains is served first by the next one. A CRITICAL message therefore waits for at most the CRITICAL
+ * messages ahead of it plus one batch per lower lane every <code>starvationLimit</code> batches, however much
+ * lower-priority traffic is pending.</p>
+ * <p>Messages taken from several lanes are put back into the order they were sent before the batch is written, so
+ * that Nagios sees a batch's state changes in order. Across batches, a lower-priority message can be delivered after
+ * a more severe one that was sent later.</p> */
+class NscaPriorityQueue implements NscaQueue {
+    /** Highest priority first */
+    private static final Nsca.NagiosMsgLevel[] PRIORITY = {
+            Nsca.NagiosMsgLevel.CRITICAL, Nsca.NagiosMsgLevel.UNKNOWN, Nsca.NagiosMsgLevel.WARN, Nsca.NagiosMsgLevel.OK,
+            Nsca.NagiosMsgLevel.NO_MSG };
+
+    /** Indexed like PRIORITY */
+    private final NscaRingBuffer[] lanes = new NscaRingBuffer[PRIORITY.length];
+
+    /** Number of consecutive drains that passed over each non-empty lane; updated without locking, so approximate
+     * when several senders drain at once */
+    private final AtomicInteger[] skipped = new AtomicInteger[PRIORITY.length];
+
+    /** Indexed by ordinal */
+    private final int[] laneOf = new int[Nsca.NagiosMsgLevel.values().length];
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final int starvationLimit;
+
+    /** @param capacities capacity of each lane, indexed by ordinal */
+    NscaPriorityQueue(int[] capacities, Nsca.OverflowPolicy overflowPolicy, long blockTimeout, int starvationLimit) {
+        this.starvationLimit = Math.max(1, starvationLimit);
+        for (int i = 0; i < PRIORITY.length; i++) {
+            int ordinal = PRIORITY[i].ordinal();
+            lanes[i] = new NscaRingBuffer(capacities[ordinal], overflowPolicy, blockTimeout);
+            skipped[i] = new AtomicInteger();
+            laneOf[ordinal] = i;
+        }
+    }
+
+    public boolean offer(Nsca.NagiosMsgLevel msgLevel, String message, DeliveryFuture future) {
+        return offer(msgLevel, null, message, future);
+    }
+
+    public boolean offer(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future) {
+        return lanes[laneOf[msgLevel.ordinal()]].offer(msgLevel, service, message, future, sequence.getAndIncrement());
+    }
+
+    public int drainTo(NscaBatch batch, int max) {
+        int taken = 0;
+        int served = 0; // bit per lane that contributed to this batch
+        for (int i = 0; i < lanes.length && taken < max; i++) {
+            if (skipped[i].get() >= starvationLimit) {
+                int count = lanes[i].drainTo(batch, max - taken);
+                taken += count;
+                if (count > 0)
+                    served |= 1 << i;
+            }
+        }
+        for (int i = 0; i < lanes.length && taken < max; i++) {
+            int count = lanes[i].drainTo(batch, max - taken);
+            taken += count;
+            if (count > 0)
+                served |= 1 << i;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if ((served & (1 << i)) != 0)
+                skipped[i].set(0);
+            else if (!lanes[i].isEmpty())
+                skipped[i].incrementAndGet();
+        }
+        if (Integer.bitCount(served) > 1 || (served!=0 && batch.size() > taken)) // linger adds to a batch in steps
+            batch.sortByStamp();
+        return taken;
+    }
+
+    public int size() {
+        int size = 0;
+        for (NscaRingBuffer lane : lanes)
+            size += lane.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (NscaRingBuffer lane : lanes)
+            if (!lane.isEmpty())
+                return false;
+        return true;
+    }
+
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (NscaRingBuffer lane : lanes)
+            dropped += lane.getDroppedCount();
+        return dropped;
+    }
+
+    /** @return number of messages waiting in the lane of <code>msgLevel</code> */
+    int size(Nsca.NagiosMsgLevel msgLevel) { return lanes[laneOf[msgLevel.ordinal()]].size(); }
+}
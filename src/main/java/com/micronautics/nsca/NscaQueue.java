@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+/** Messages waiting to be delivered on one channel: a single {@link NscaRingBuffer}, or one per level with
+ * {@link NscaPriorityQueue}. Safe for concurrent producers and consumers. */
+interface NscaQueue {
+    /** Enqueues the message, applying the channel's overflow policy if there is no room
+     * @param future null unless the message was sent with <code>sendAsync()</code>
+     * @return false if this message was discarded */
+    boolean offer(Nsca.NagiosMsgLevel msgLevel, String message, DeliveryFuture future);
+
+    /** @param service encoded by {@link NscaPacketEncoder#encodeService(String, java.nio.charset.Charset)} for a message
+     * that is not for the channel's own service, otherwise null */
+    boolean offer(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future);
+
+    /** Moves up to <code>max</code> messages into <code>batch</code>
+     * @return number of messages moved */
+    int drainTo(NscaBatch batch, int max);
+
+    int size();
+
+    boolean isEmpty();
+
+    /** @return number of messages discarded because there was no room */
+    long getDroppedCount();
+}
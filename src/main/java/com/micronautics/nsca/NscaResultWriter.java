@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Delivers check results straight to a Nagios on the same host instead of through an NSCA daemon, selected with the
+ * <code>transport</code> setting. Subclasses format each batch as text into a reused StringBuilder, which is encoded into
+ * reused buffers; writes are serialized, as a channel's senders share one writer. */
+abstract class NscaResultWriter {
+    protected final Nsca channel;
+    protected final File file;
+    protected final StringBuilder text = new StringBuilder(4096);
+
+    private final CharsetEncoder encoder;
+    private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+    NscaResultWriter(Nsca channel, File file) {
+        this.channel = channel;
+        this.file = file;
+        encoder = channel.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** @return a writer for the channel's transport, or null if results are sent to an NSCA daemon */
+    static NscaResultWriter forChannel(Nsca channel) {
+        switch (channel.getTransport()) {
+            case COMMAND_FILE:
+                return new NscaCommandFileWriter(channel, new File(channel.getCommandFile()));
+            case CHECK_RESULT_DIRECTORY:
+                return new NscaCheckResultWriter(channel, new File(channel.getCheckResultDirectory()));
+            default:
+                return null;
+        }
+    }
+
+    /** Writes every result of <code>batch</code>; after an IOException the next call starts afresh */
+    abstract void write(NscaBatch batch) throws IOException;
+
+    abstract void close();
+
+    /** @return service name of message <code>i</code>, which may be another than the channel's for heartbeats */
+    protected String serviceName(NscaBatch batch, int i) {
+        byte[] service = batch.getService(i);
+        if (service==null)
+            return channel.getNscaService();
+        int length = 0;
+        while (length < service.length && service[length]!=0)
+            length++;
+        return new String(service, 0, length, channel.getCharset());
+    }
+
+    /** Appends plugin output on a single line, escaping line breaks as Nagios expects */
+    protected void appendOutput(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c=='\n')
+                text.append("\\n");
+            else if (c!='\r')
+                text.append(c);
+        }
+    }
+
+    /** @return <code>text</code> encoded in the channel's charset, in a buffer that is reused by the next call */
+    protected ByteBuffer encodeText() throws CharacterCodingException {
+        int needed = (int) (text.length() * encoder.maxBytesPerChar()) + 1;
+        if (bytes.capacity() < needed)
+            bytes = ByteBuffer.allocate(Math.max(needed, bytes.capacity() * 2));
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        return bytes;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue of the messages waiting to be delivered on one channel. Slots are preallocated and each
+ * carries a sequence number that tells producers and consumers whether it is free or published (after Dmitry Vyukov's
+ * bounded MPMC queue), so <code>send()</code> neither locks nor allocates. What happens when the buffer is full is
+ * decided by the channel's {@link Nsca.OverflowPolicy}; every message that is discarded is counted.
+ * <p>Normally a single thread consumes, but consumption is also safe from producers, which the DROP_OLDEST policy
+ * relies on.</p> */
+class NscaRingBuffer implements NscaQueue {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Nsca.NagiosMsgLevel[] levels;
+    private final String[] messages;
+    private final DeliveryFuture[] futures;
+
+    /** Encoded service name of each message that is not for the channel's own service, otherwise null */
+    private final byte[][] services;
+
+    /** Position of each message in the order messages were sent to the channel; only used with priority lanes */
+    private final long[] stamps;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final Nsca.OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    /** Latest message of each service and level that overflowed under the OVERWRITE policy, so that heartbeats and
+     * aggregated results of other services never replace each other or the channel's own messages */
+    private final ConcurrentMap<Slot, Overwritten> overwritten = new ConcurrentHashMap<Slot, Overwritten>();
+
+    /** Key of <code>overwritten</code>; services are compared by content. Only allocated when a message overflows. */
+    private static class Slot {
+        final Nsca.NagiosMsgLevel msgLevel;
+        final byte[] service;
+
+        Slot(Nsca.NagiosMsgLevel msgLevel, byte[] service) {
+            this.msgLevel = msgLevel;
+            this.service = service;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Slot && ((Slot) other).msgLevel==msgLevel && Arrays.equals(((Slot) other).service, service);
+        }
+
+        @Override
+        public int hashCode() { return msgLevel.hashCode() * 31 + Arrays.hashCode(service); }
+    }
+
+    /** Only allocated when a message overflows under the OVERWRITE policy */
+    private static class Overwritten {
+        final byte[] service;
+        final String message;
+        final DeliveryFuture future;
+        final long stamp;
+
+        Overwritten(byte[] service, String message, DeliveryFuture future, long stamp) {
+            this.service = service;
+            this.message = message;
+            this.future = future;
+            this.stamp = stamp;
+        }
+    }
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** @param capacity rounded up to a power of two
+     * @param blockTimeout milliseconds a producer waits for a free slot under the BLOCK policy */
+    NscaRingBuffer(int capacity, Nsca.OverflowPolicy overflowPolicy, long blockTimeout) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        levels = new Nsca.NagiosMsgLevel[size];
+        messages = new String[size];
+        futures = new DeliveryFuture[size];
+        services = new byte[size][];
+        stamps = new long[size];
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+    }
+
+    int capacity() { return mask + 1; }
+
+    /** @return number of messages discarded because the buffer was full */
+    public long getDroppedCount() { return dropped.get(); }
+
+    /** Enqueues the message, applying the overflow policy if the buffer is full. The futures of older messages that
+     * are discarded are completed as DROPPED; the caller completes <code>future</code> if false is returned.
+     * @param future null unless the message was sent with <code>sendAsync()</code>
+     * @return false if this message was discarded; true if it was enqueued, even if an older message was discarded */
+    public boolean offer(Nsca.NagiosMsgLevel msgLevel, String message, DeliveryFuture future) {
+        return offer(msgLevel, null, message, future, 0);
+    }
+
+    public boolean offer(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future) {
+        return offer(msgLevel, service, message, future, 0);
+    }
+
+    /** @param stamp carried along with the message into the batch */
+    boolean offer(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future, long stamp) {
+        if (tryOffer(msgLevel, service, message, future, stamp))
+            return true;
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!tryOffer(msgLevel, service, message, future, stamp))
+                    if (tryPoll(null))
+                        dropped.incrementAndGet();
+                return true;
+
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (!tryOffer(msgLevel, service, message, future, stamp)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    LockSupport.parkNanos(Math.min(remaining, 100000L));
+                }
+                return true;
+
+            case OVERWRITE:
+                Overwritten previous = overwritten.put(new Slot(msgLevel, service), new Overwritten(service, message, future, stamp));
+                if (previous != null) {
+                    dropped.incrementAndGet();
+                    if (previous.future != null)
+                        previous.future.dropped();
+                }
+                return true;
+
+            default: // DROP_NEWEST
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    private boolean tryOffer(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message, DeliveryFuture future, long stamp) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    levels[index] = msgLevel;
+                    messages[index] = message;
+                    futures[index] = future;
+                    services[index] = service;
+                    stamps[index] = stamp;
+                    sequences.lazySet(index, position + 1); // publish
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false; // full
+            }
+            // otherwise another producer claimed this position first; try the next one
+        }
+    }
+
+    /** Removes the oldest message and adds it to <code>batch</code>, or drops it if <code>batch</code> is null.
+     * @return false if the buffer is empty */
+    private boolean tryPoll(NscaBatch batch) {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    if (batch!=null)
+                        batch.add(levels[index], services[index], messages[index], futures[index], stamps[index]);
+                    else if (futures[index]!=null)
+                        futures[index].dropped();
+                    levels[index] = null;
+                    messages[index] = null;
+                    futures[index] = null;
+                    services[index] = null;
+                    sequences.lazySet(index, position + mask + 1); // free the slot for the next lap
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false; // empty, or the producer has not published yet
+            }
+        }
+    }
+
+    /** Moves up to <code>max</code> messages into <code>batch</code>, oldest first, followed by any overwritten ones
+     * @return number of messages moved */
+    public int drainTo(NscaBatch batch, int max) {
+        int count = 0;
+        while (count < max && !batch.isFull() && tryPoll(batch))
+            count++;
+        if (overflowPolicy == Nsca.OverflowPolicy.OVERWRITE && !overwritten.isEmpty()) {
+            for (Map.Entry<Slot, Overwritten> entry : overwritten.entrySet()) {
+                if (count >= max || batch.isFull())
+                    break;
+                Overwritten latest = entry.getValue();
+                if (overwritten.remove(entry.getKey(), latest)) { // otherwise it was replaced; taken next time
+                    batch.add(entry.getKey().msgLevel, latest.service, latest.message, latest.future, latest.stamp);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        int size = (int) Math.max(0, tail.get() - head.get());
+        if (overflowPolicy == Nsca.OverflowPolicy.OVERWRITE)
+            size += overwritten.size();
+        return size;
+    }
+
+    public boolean isEmpty() { return size()==0; }
+}
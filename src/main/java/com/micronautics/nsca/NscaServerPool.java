@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NSCA servers a channel may deliver to. Every new connection asks the pool for a server: servers whose circuit is
+ * open are skipped, so connections fail over to the healthy ones, and load is spread across those either in turn
+ * (ROUND_ROBIN) or by choosing the server with the fewest open connections from this process (LEAST_OUTSTANDING).
+ * Connections are long-lived, so load moves between servers as connections are renegotiated, not per message. Each
+ * pool starts its rotation at a random server, so that the first connections of many channels do not all go to the
+ * first server listed.
+ * <p>The open connection count and cached address of a server are shared by every pool that lists it, as the circuit
+ * breakers are. Addresses are resolved when first used and reused for <code>ttl</code> milliseconds, so DNS is never
+ * consulted for each connect; if a refresh fails, the previous address keeps being used.</p> */
+class NscaServerPool {
+    /** Keyed by "host:port" */
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    private final Server[] servers;
+    private final Nsca.LoadBalancing loadBalancing;
+    private final long ttl;
+    private final AtomicInteger next = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    /** @param endpoints "host" or "host:port" entries; <code>defaultPort</code> is used when the port is omitted */
+    NscaServerPool(Nsca channel, List<String> endpoints, int defaultPort, Nsca.LoadBalancing loadBalancing, long ttl) {
+        this.loadBalancing = loadBalancing;
+        this.ttl = ttl;
+        servers = new Server[endpoints.size()];
+        for (int i = 0; i < servers.length; i++) {
+            String endpoint = endpoints.get(i).trim();
+            int colon = endpoint.lastIndexOf(':');
+            String host = endpoint;
+            int port = defaultPort;
+            if (colon > 0 && endpoint.indexOf(':')==colon) { // IPv6 literals without a port are left alone
+                host = endpoint.substring(0, colon);
+                port = Integer.parseInt(endpoint.substring(colon + 1));
+            }
+            servers[i] = new Server(Endpoint.forServer(host, port), channel.getCircuitBreaker(host, port));
+        }
+    }
+
+    int size() { return servers.length; }
+
+    /** @return number of connections from this pool's channel that are currently open */
+    int getOutstanding() {
+        int outstanding = 0;
+        for (Server server : servers)
+            outstanding += server.open.get();
+        return outstanding;
+    }
+
+    /** @return the server for the next connection; if every circuit is open, the next one in turn, whose connect then
+     * fails fast */
+    Server select() {
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        Server chosen = null;
+        for (int i = 0; i < servers.length; i++) {
+            Server server = servers[(start + i) % servers.length];
+            if (!server.isAvailable())
+                continue;
+            if (loadBalancing==Nsca.LoadBalancing.ROUND_ROBIN)
+                return server;
+            if (chosen==null || server.getOutstanding() < chosen.getOutstanding())
+                chosen = server;
+        }
+        return chosen!=null ? chosen : servers[start % servers.length];
+    }
+
+    /** @return true if connects to every server are currently refused */
+    boolean isCircuitOpen() {
+        for (Server server : servers)
+            if (server.breaker==null || server.breaker.getState()==NscaCircuitBreaker.State.CLOSED)
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Server server : servers)
+            sb.append(sb.length()==0 ? "" : ",").append(server);
+        return sb.toString();
+    }
+
+    /** One NSCA server as seen by this pool's channel */
+    class Server {
+        final String host;
+        final int port;
+
+        /** Null if the circuit breaker is disabled */
+        final NscaCircuitBreaker breaker;
+
+        private final Endpoint endpoint;
+
+        /** Number of connections from this pool's channel that are currently open to the server */
+        private final AtomicInteger open = new AtomicInteger();
+
+        Server(Endpoint endpoint, NscaCircuitBreaker breaker) {
+            this.host = endpoint.host;
+            this.port = endpoint.port;
+            this.endpoint = endpoint;
+            this.breaker = breaker;
+        }
+
+        boolean isAvailable() { return breaker==null || breaker.isAvailable(); }
+
+        /** @return number of connections from this process that are currently open to the server */
+        int getOutstanding() { return endpoint.outstanding.get(); }
+
+        /** Counts a connection that has completed its handshake; must be matched by {@link #closed()} */
+        void opened() {
+            open.incrementAndGet();
+            endpoint.outstanding.incrementAndGet();
+        }
+
+        void closed() {
+            open.decrementAndGet();
+            endpoint.outstanding.decrementAndGet();
+        }
+
+        /** @return cached address, resolved again once it is older than the pool's ttl; may be unresolved if the host
+         * has never been resolved, in which case connecting fails */
+        InetSocketAddress resolve() { return endpoint.resolve(ttl); }
+
+        /** Never blocks: returns the cached address, and once it is older than the pool's ttl looks it up again on
+         * <code>executor</code> while the cached address keeps being used.
+         * @return null if the host has never been looked up, in which case <code>whenResolved</code> is run once the
+         * lookup completes */
+        InetSocketAddress resolve(Executor executor, Runnable whenResolved) {
+            return endpoint.resolve(ttl, executor, whenResolved);
+        }
+
+        @Override
+        public String toString() { return host + ":" + port; }
+    }
+
+    /** State of one server that is shared by every pool listing it */
+    private static class Endpoint {
+        final String host;
+        final int port;
+
+        /** Number of connections from this process that are currently open to the server */
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile InetSocketAddress address;
+        private volatile long resolvedAt;
+
+        /** Set while a lookup started by {@link #resolve(long, Executor, Runnable)} is in progress */
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        /** Run once that lookup completes */
+        private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<Runnable>();
+
+        private Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        static Endpoint forServer(String host, int port) {
+            String key = host + ":" + port;
+            Endpoint endpoint = endpoints.get(key);
+            if (endpoint==null) {
+                Endpoint created = new Endpoint(host, port);
+                endpoint = endpoints.putIfAbsent(key, created);
+                if (endpoint==null)
+                    endpoint = created;
+            }
+            return endpoint;
+        }
+
+        InetSocketAddress resolve(long ttl) {
+            InetSocketAddress cached = address;
+            long now = System.currentTimeMillis();
+            if (cached!=null && now - resolvedAt < ttl)
+                return cached;
+            InetSocketAddress fresh = new InetSocketAddress(host, port);
+            if (fresh.isUnresolved())
+                return cached!=null ? cached : fresh;
+            address = fresh;
+            resolvedAt = now;
+            return fresh;
+        }
+
+        InetSocketAddress resolve(final long ttl, Executor executor, Runnable whenResolved) {
+            InetSocketAddress cached = address;
+            if (cached!=null && System.currentTimeMillis() - resolvedAt < ttl)
+                return cached;
+            if (cached==null)
+                waiters.add(whenResolved);
+            if (refreshing.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            InetSocketAddress resolved = resolve(ttl);
+                            if (address==null) { // cache the failure too, so that connects fail instead of waiting
+                                address = resolved;
+                                resolvedAt = System.currentTimeMillis();
+                            }
+                        } finally {
+                            refreshing.set(false);
+                            Runnable waiter;
+                            while ((waiter = waiters.poll())!=null)
+                                waiter.run();
+                        }
+                    }
+                });
+            }
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable store-and-forward journal for messages that a channel could not deliver. Messages are encoded into
+ * unencrypted packets with a zero time stamp and appended to memory-mapped segment files, so an append is a memory copy
+ * and never waits for the disk; dirty segments are forced to disk every <code>syncInterval</code> milliseconds. A
+ * replayer on a shared background thread drains the journal in order, in batches, over its own connection: each packet
+ * is stamped with the server time and encrypted just before it is written. Fully replayed segments are reset and
+ * reused, so a spool that keeps up occupies a single segment.
+ * <p>Segment layout: a 16 byte header (magic, records written, records replayed, unused) followed by fixed-size
+ * packets. A packet is only counted once its bytes have been copied, and its CRC is verified before it is replayed, so
+ * a record torn by a crash is discarded rather than sent. Delivery is at least once: a batch whose write fails part way
+ * is replayed again in full.</p> */
+class NscaSpool {
+    private static final int PACKET_SIZE = NscaPacketEncoder.PACKET_SIZE;
+    private static final int MAGIC = 0x4e534350; // "NSCP"
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITTEN_OFFSET = 4;
+    private static final int REPLAYED_OFFSET = 8;
+    private static final String SUFFIX = ".spool";
+
+    private static Logger logger = LoggerFactory.getLogger(NscaSpool.class);
+
+    /** Shared amongst all spools; replays block on the network, so a second thread keeps one dead server from
+     * delaying every sync */
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    private final Nsca channel;
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final int maxBatch;
+
+    /** Held until the spool is closed so that two channels never write the same files */
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    /** Periodic sync and replay of this spool; the sync task is null if syncInterval is 0 */
+    private final ScheduledFuture<?> syncTask;
+    private final ScheduledFuture<?> wakeTask;
+
+    /** Set by close(), after which nothing is appended or replayed */
+    private boolean closed = false;
+
+    /** Oldest first; messages are appended to the last one */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    /** At most one replayed segment is kept for reuse; any others are deleted */
+    private Segment spare;
+
+    private long nextSequence;
+    private boolean dirty;
+
+    /** Only used while holding the monitor of this spool */
+    private final NscaPacketEncoder encoder;
+    private final ByteBuffer scratch = ByteBuffer.allocate(PACKET_SIZE);
+
+    /** Only used by the replayer */
+    private final NscaPacketEncoder stamper;
+    private final NscaConnection connection;
+    private final ByteBuffer replayBuffer;
+
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private final Runnable replayTask = new Runnable() {
+        public void run() {
+            try {
+                replay();
+            } finally {
+                replaying.set(false);
+            }
+        }
+    };
+
+    NscaSpool(Nsca channel, File directory, int segmentRecords, int maxSegments, long syncInterval, long replayInterval)
+            throws IOException {
+        this.channel = channel;
+        this.directory = directory;
+        this.segmentRecords = Math.max(1, segmentRecords);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.maxBatch = channel.getMaxBatchCount();
+        this.encoder = channel.newPacketEncoder();
+        this.stamper = channel.newPacketEncoder();
+        this.replayBuffer = ByteBuffer.allocate(maxBatch * PACKET_SIZE);
+        this.connection = new NscaConnection(channel, channel.getServerPool());
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create spool directory " + directory);
+        lockFile = new RandomAccessFile(new File(directory, ".lock"), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock==null) {
+            lockFile.close();
+            throw new IOException("Spool directory " + directory + " is in use by another channel");
+        }
+        lock = fileLock;
+        try {
+            recover();
+        } catch (IOException e) {
+            lockFile.close(); // also releases the lock
+            throw e;
+        }
+
+        ScheduledThreadPoolExecutor executor = getScheduler();
+        if (syncInterval > 0)
+            syncTask = executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() { sync(); }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        else
+            syncTask = null;
+        wakeTask = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() { wake(); }
+        }, replayInterval, Math.max(1, replayInterval), TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler==null) {
+            scheduler = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "nsca-spool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+
+    /** Maps the segments left by a previous run, oldest first */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        long[] sequences = new long[files==null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    sequences[count++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    count--;
+                }
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(sequences[i], false);
+            nextSequence = sequences[i] + 1;
+            if (segment.map.capacity() < HEADER_SIZE || segment.map.getInt(0)!=MAGIC) {
+                logger.warn("Ignoring corrupt spool segment " + segment.file);
+                segment.file.delete();
+            } else if (segment.pending() > 0) {
+                segments.add(segment);
+            } else {
+                recycle(segment);
+            }
+        }
+        long backlog = size();
+        if (backlog > 0)
+            logger.info("Nsca spool " + directory + " holds " + backlog + " message(s) from a previous run");
+    }
+
+    /** Appends one message; never blocks on I/O
+     * @return false if the spool is full */
+    synchronized boolean append(Nsca.NagiosMsgLevel msgLevel, byte[] service, String message) {
+        if (closed)
+            return false;
+        Segment tail = segments.peekLast();
+        if (tail==null || tail.isFull()) {
+            tail = newSegment();
+            if (tail==null) {
+                if (discarded.incrementAndGet()==1)
+                    logger.error("Nsca spool " + directory + " is full; messages are being discarded");
+                return false;
+            }
+        }
+        scratch.clear();
+        encoder.encode(msgLevel, service, message, 0, scratch);
+        scratch.flip();
+        tail.map.position(HEADER_SIZE + tail.written * PACKET_SIZE);
+        tail.map.put(scratch);
+        tail.map.putInt(WRITTEN_OFFSET, ++tail.written); // only counted once the whole packet is in place
+        dirty = true;
+        spooled.incrementAndGet();
+        return true;
+    }
+
+    private Segment newSegment() {
+        if (segments.size() >= maxSegments)
+            return null;
+        try {
+            Segment segment = spare;
+            spare = null;
+            if (segment==null)
+                segment = new Segment(nextSequence++, true);
+            else
+                segment.reuse(nextSequence++);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            logger.error("Cannot create spool segment in " + directory + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void recycle(Segment segment) {
+        if (spare==null) {
+            spare = segment;
+        } else if (!segment.file.delete()) {
+            logger.warn("Cannot delete spool segment " + segment.file);
+        }
+    }
+
+    /** Starts a replay on the shared scheduler unless one is running or there is nothing to replay */
+    void wake() {
+        if (!isEmpty() && replaying.compareAndSet(false, true))
+            getScheduler().execute(replayTask);
+    }
+
+    /** Writes the spooled messages to the server in batches until the spool is empty or the server cannot be reached */
+    private void replay() {
+        connection.lock();
+        try {
+            int taken;
+            while ((taken = take()) > 0) {
+                if (replayBuffer.hasRemaining()) {
+                    connection.ensureOpen();
+                    int serverTime = connection.getTimestamp();
+                    NscaEncryptor encryptor = connection.getEncryptor();
+                    for (int start = 0; start < replayBuffer.limit(); start += PACKET_SIZE) {
+                        stamper.restamp(replayBuffer, start, serverTime);
+                        encryptor.encrypt(replayBuffer, start, PACKET_SIZE);
+                    }
+                    int packets = replayBuffer.remaining() / PACKET_SIZE;
+                    connection.write(replayBuffer);
+                    replayed.addAndGet(packets);
+                    channel.getMetrics().sent(packets);
+                }
+                commit(taken);
+            }
+        } catch (Exception e) {
+            connection.close();
+            if (logger.isDebugEnabled())
+                logger.debug("Nsca spool replay to " + channel.getServerPool() +
+                        " failed (" + e.getMessage() + "); will retry");
+        } finally {
+            connection.unlock();
+        }
+    }
+
+    /** Copies the valid packets of the next batch from the oldest segment into replayBuffer
+     * @return number of records consumed, including torn ones that were skipped */
+    private synchronized int take() {
+        Segment head = segments.peekFirst();
+        replayBuffer.clear();
+        if (head==null)
+            return 0;
+        int count = Math.min(head.pending(), maxBatch);
+        for (int i = 0; i < count; i++) {
+            int start = replayBuffer.position();
+            head.map.limit(HEADER_SIZE + (head.replayed + i + 1) * PACKET_SIZE);
+            head.map.position(HEADER_SIZE + (head.replayed + i) * PACKET_SIZE);
+            replayBuffer.put(head.map);
+            if (!stamper.isValid(replayBuffer, start)) {
+                replayBuffer.position(start);
+                discarded.incrementAndGet();
+                logger.warn("Discarding corrupt record " + (head.replayed + i) + " of spool segment " + head.file);
+            }
+        }
+        head.map.clear();
+        replayBuffer.flip();
+        return count;
+    }
+
+    /** Marks records of the oldest segment as replayed, then resets or recycles the segment if it is exhausted */
+    private synchronized void commit(int count) {
+        Segment head = segments.peekFirst();
+        head.replayed += count;
+        head.map.putInt(REPLAYED_OFFSET, head.replayed);
+        dirty = true;
+        if (head.pending() > 0)
+            return;
+        if (segments.size()==1) {
+            head.reset(); // compact in place: the next append starts at the beginning again
+        } else {
+            segments.removeFirst();
+            recycle(head);
+        }
+    }
+
+    /** Forces dirty segments to disk */
+    synchronized void sync() {
+        if (!dirty)
+            return;
+        for (Segment segment : segments)
+            segment.map.force();
+        dirty = false;
+    }
+
+    /** Stops the periodic tasks, waits for a replay in progress, forces the spool to disk and releases its files, so
+     * that another channel may open the directory; appends are refused from then on */
+    void close() {
+        if (syncTask!=null)
+            syncTask.cancel(false);
+        wakeTask.cancel(false);
+        connection.lock();
+        try {
+            synchronized (this) {
+                if (closed)
+                    return;
+                sync();
+                closed = true;
+                segments.clear(); // the mappings are released once the buffers are collected
+                spare = null;
+            }
+            connection.close();
+        } finally {
+            connection.unlock();
+        }
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            logger.warn("Cannot release spool directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /** @return number of messages waiting to be replayed */
+    synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.pending();
+        return size;
+    }
+
+    boolean isEmpty() { return size()==0; }
+
+    long getSpooledCount() { return spooled.get(); }
+
+    long getReplayedCount() { return replayed.get(); }
+
+    /** @return number of messages lost because the spool was full or a record was corrupt */
+    long getDiscardedCount() { return discarded.get(); }
+
+    File getDirectory() { return directory; }
+
+    /** One memory-mapped segment file. Only used while holding the monitor of the spool. */
+    private class Segment {
+        File file;
+        final MappedByteBuffer map;
+        final int capacity;
+        int written;
+        int replayed;
+
+        Segment(long sequence, boolean create) throws IOException {
+            file = fileFor(sequence);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long size = create ? HEADER_SIZE + (long) segmentRecords * PACKET_SIZE : raf.length();
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); // stays valid after the file is closed
+            } finally {
+                raf.close();
+            }
+            capacity = (map.capacity() - HEADER_SIZE) / PACKET_SIZE;
+            if (create) {
+                map.putInt(0, MAGIC);
+                reset();
+            } else if (map.capacity() >= HEADER_SIZE) {
+                written = Math.max(0, Math.min(map.getInt(WRITTEN_OFFSET), capacity));
+                replayed = Math.max(0, Math.min(map.getInt(REPLAYED_OFFSET), written));
+            }
+        }
+
+        int pending() { return written - replayed; }
+
+        boolean isFull() { return written==capacity; }
+
+        void reset() {
+            written = replayed = 0;
+            map.putInt(WRITTEN_OFFSET, 0);
+            map.putInt(REPLAYED_OFFSET, 0);
+        }
+
+        /** Renames a recycled segment so that it sorts after every segment that is still in use */
+        void reuse(long sequence) throws IOException {
+            reset();
+            File renamed = fileFor(sequence);
+            if (!file.renameTo(renamed))
+                throw new IOException("Cannot rename " + file + " to " + renamed);
+            file = renamed;
+        }
+    }
+
+    private File fileFor(long sequence) {
+        return new File(directory, String.format("%019d", sequence) + SUFFIX);
+    }
+}
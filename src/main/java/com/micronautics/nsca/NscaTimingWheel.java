@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel that schedules every heartbeat in the JVM on one daemon thread. The innermost wheel has
+ * 256 slots of one tick each; each of the three outer wheels has 64 slots, each spanning a whole turn of the wheel
+ * inside it, and its slots are cascaded inwards as time reaches them. Scheduling and firing are O(1) per heartbeat, no
+ * matter how many are registered, and nothing is allocated once a heartbeat is registered. Heartbeats further away
+ * than the outermost wheel (2^26 ticks) are parked in its last slot and rescheduled when it is cascaded.
+ * <p>Cancelled heartbeats are dropped when they come due, so the slot lists are singly linked and only touched by the
+ * wheel's thread; other threads hand new heartbeats over through a lock-free queue. All the heartbeats of a channel that
+ * are due in the same tick are queued together before its sender is woken, so that they go out in one batch.</p> */
+class NscaTimingWheel {
+    private static final int INNER_BITS = 8;
+    private static final int OUTER_BITS = 6;
+    private static final int LEVELS = 4;
+    private static final long HORIZON = 1L << (INNER_BITS + OUTER_BITS * (LEVELS - 1));
+
+    private static NscaTimingWheel instance;
+
+    private final long tickMillis;
+    private final long start = System.currentTimeMillis();
+
+    /** Slot lists of each wheel; index 0 is the innermost */
+    private final NscaHeartbeat[][] wheels = new NscaHeartbeat[LEVELS][];
+
+    /** Last tick processed; only used by the wheel's thread */
+    private long currentTick = 0;
+
+    private final Queue<NscaHeartbeat> registrations = new ConcurrentLinkedQueue<NscaHeartbeat>();
+
+    /** Channels with heartbeats due in the tick being processed */
+    private final List<Nsca> dueChannels = new ArrayList<Nsca>();
+
+    private NscaTimingWheel(long tickMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        wheels[0] = new NscaHeartbeat[1 << INNER_BITS];
+        for (int level = 1; level < LEVELS; level++)
+            wheels[level] = new NscaHeartbeat[1 << OUTER_BITS];
+        Thread thread = new Thread(new Runnable() {
+            public void run() { loop(); }
+        }, "nsca-heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @param tickMillis resolution of the wheel; only honored when the wheel is first created */
+    static synchronized NscaTimingWheel getInstance(long tickMillis) {
+        if (instance==null)
+            instance = new NscaTimingWheel(tickMillis);
+        return instance;
+    }
+
+    long getTickMillis() { return tickMillis; }
+
+    /** Schedules the first emission of <code>heartbeat</code> for the next tick; may be called from any thread */
+    void register(NscaHeartbeat heartbeat) {
+        registrations.add(heartbeat);
+    }
+
+    private void loop() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long target = (now - start) / tickMillis;
+            if (target <= currentTick) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(start + (currentTick + 1) * tickMillis - now));
+                continue;
+            }
+            NscaHeartbeat heartbeat;
+            while ((heartbeat = registrations.poll())!=null) {
+                heartbeat.deadline = currentTick + 1;
+                insert(heartbeat);
+            }
+            while (currentTick < target) // catches up if the thread fell behind
+                advance(now);
+        }
+    }
+
+    private void insert(NscaHeartbeat heartbeat) {
+        if (heartbeat.deadline <= currentTick)
+            heartbeat.deadline = currentTick + 1; // the current slot has already been processed
+        long delta = heartbeat.deadline - currentTick;
+        long placement = delta < HORIZON ? heartbeat.deadline : currentTick + HORIZON - 1;
+        int level = 0;
+        int shift = 0;
+        long span = 1L << INNER_BITS;
+        while (level < LEVELS - 1 && delta >= span) {
+            shift = INNER_BITS + OUTER_BITS * level;
+            level++;
+            span <<= OUTER_BITS;
+        }
+        NscaHeartbeat[] wheel = wheels[level];
+        int slot = (int) (placement >>> shift) & (wheel.length - 1);
+        heartbeat.next = wheel[slot];
+        wheel[slot] = heartbeat;
+    }
+
+    private void advance(long now) {
+        long tick = ++currentTick;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = INNER_BITS + OUTER_BITS * (level - 1);
+            if ((tick & ((1L << shift) - 1))==0)
+                cascade(level, (int) (tick >>> shift) & ((1 << OUTER_BITS) - 1));
+        }
+
+        NscaHeartbeat[] inner = wheels[0];
+        int slot = (int) tick & (inner.length - 1);
+        NscaHeartbeat heartbeat = inner[slot];
+        inner[slot] = null;
+        while (heartbeat!=null) {
+            NscaHeartbeat following = heartbeat.next;
+            fire(heartbeat, now);
+            heartbeat = following;
+        }
+
+        for (Nsca channel : dueChannels) {
+            NscaHeartbeat due = channel.dueHeartbeats;
+            channel.dueHeartbeats = null;
+            channel.emitHeartbeats(due);
+        }
+        dueChannels.clear();
+    }
+
+    /** Moves the heartbeats of an outer slot to the wheels inside it */
+    private void cascade(int level, int slot) {
+        NscaHeartbeat heartbeat = wheels[level][slot];
+        wheels[level][slot] = null;
+        while (heartbeat!=null) {
+            NscaHeartbeat following = heartbeat.next;
+            insert(heartbeat);
+            heartbeat = following;
+        }
+    }
+
+    private void fire(NscaHeartbeat heartbeat, long now) {
+        heartbeat.next = null;
+        if (heartbeat.isCancelled()) {
+            heartbeat.getChannel().unregister(heartbeat);
+            return;
+        }
+        long intervalTicks = Math.max(1, heartbeat.getInterval() / tickMillis);
+        long due = heartbeat.getLastSent() + heartbeat.getInterval();
+        if (due - now >= tickMillis) { // the state was sent recently, by the channel
+            heartbeat.deadline = currentTick + (due - now) / tickMillis;
+            insert(heartbeat);
+            return;
+        }
+        heartbeat.due(now);
+        heartbeat.markSent(now);
+        Nsca channel = heartbeat.getChannel();
+        if (channel.dueHeartbeats==null)
+            dueChannels.add(channel);
+        heartbeat.nextDue = channel.dueHeartbeats;
+        channel.dueHeartbeats = heartbeat;
+        heartbeat.deadline = currentTick + intervalTicks;
+        insert(heartbeat);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NSCA's simple XOR obfuscation. The daemon XORs every packet with the initialization vector and then with the
+ * password, each rotated from the start of the packet, so both are combined into a single keystream once per
+ * connection and applied eight bytes at a time. */
+class XorEncryptor implements NscaEncryptor {
+    private final ByteBuffer keystream;
+
+    /** @param length number of bytes of keystream to precompute; longer buffers are not supported */
+    XorEncryptor(byte[] encryptionVector, byte[] password, int length) {
+        byte[] bytes = new byte[length];
+        /* rotate over encryptionVector received from the server */
+        for (int y = 0, x = 0; y < length; y++, x++) {
+            if (x >= encryptionVector.length)
+                x = 0;
+            bytes[y] = encryptionVector[x];
+        }
+        /* rotate over password */
+        if (password.length > 0) {
+            for (int y = 0, x = 0; y < length; y++, x++) {
+                if (x >= password.length)
+                    x = 0;
+                bytes[y] ^= password[x];
+            }
+        }
+        keystream = ByteBuffer.wrap(bytes);
+    }
+
+    public void encrypt(ByteBuffer buffer, int offset, int length) {
+        if (length > keystream.capacity())
+            throw new IllegalArgumentException("XorEncryptor: " + length + " bytes exceeds keystream of " + keystream.capacity());
+        keystream.order(buffer.order());
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            buffer.putLong(offset + i, buffer.getLong(offset + i) ^ keystream.getLong(i));
+        for (; i < length; i++)
+            buffer.put(offset + i, (byte) (buffer.get(offset + i) ^ keystream.get(i)));
+    }
+}
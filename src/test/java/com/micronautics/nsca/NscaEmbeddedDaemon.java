@@ -0,0 +1,327 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process NSCA daemon on loopback, for tests and capacity planning without a real Nagios. Like nsca, it sends each
+ * connection a random 128-byte initialization vector and a time stamp, then reads version 3 packets, decrypts them
+ * (NONE or XOR), checks their CRC32 and records the decoded check results. Faults can be injected while it runs:
+ * a delay before the handshake or before each packet is read, refused connections, and connections dropped after a
+ * number of packets or on demand.
+ * <p>At most <code>recordLimit</code> results are kept for {@link #getResults()}; a {@link Listener} sees all of them.
+ * Each connection is served by its own daemon thread.</p> */
+public class NscaEmbeddedDaemon implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(NscaEmbeddedDaemon.class);
+
+    /** A check result as decoded by the daemon */
+    public static class Result {
+        private final Nsca.NagiosMsgLevel level;
+        private final String host;
+        private final String service;
+        private final String output;
+        private final int timestamp;
+        private final long receivedNanos;
+
+        Result(Nsca.NagiosMsgLevel level, String host, String service, String output, int timestamp, long receivedNanos) {
+            this.level = level;
+            this.host = host;
+            this.service = service;
+            this.output = output;
+            this.timestamp = timestamp;
+            this.receivedNanos = receivedNanos;
+        }
+
+        public Nsca.NagiosMsgLevel getLevel() { return level; }
+
+        public String getHost() { return host; }
+
+        public String getService() { return service; }
+
+        public String getOutput() { return output; }
+
+        /** @return time stamp of the packet, in seconds since the epoch */
+        public int getTimestamp() { return timestamp; }
+
+        /** @return <code>System.nanoTime()</code> when the packet was read */
+        public long getReceivedNanos() { return receivedNanos; }
+
+        @Override
+        public String toString() { return host + ";" + service + ";" + level + ";" + output; }
+    }
+
+    /** Called by the connection's thread for every valid packet */
+    public interface Listener {
+        void received(Result result);
+    }
+
+    private final Nsca.Encryption encryption;
+    private final byte[] password;
+    private final Charset charset;
+    private final int port;
+
+    private ServerSocket serverSocket;
+    private volatile boolean closed = false;
+
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<Result> results = new ConcurrentLinkedQueue<Result>();
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+
+    private volatile int recordLimit = 100000;
+    private volatile long handshakeDelay = 0;
+    private volatile long packetDelay = 0;
+    private volatile int dropAfter = 0;
+    private volatile Listener listener;
+
+    /** Listens on an ephemeral port, without encryption */
+    public NscaEmbeddedDaemon() throws IOException {
+        this(0, Nsca.Encryption.NONE, "", Charset.forName("UTF-8"));
+    }
+
+    /** @param port 0 for an ephemeral port
+     * @param encryption NONE or XOR */
+    public NscaEmbeddedDaemon(int port, Nsca.Encryption encryption, String password, Charset charset) throws IOException {
+        if (encryption!=Nsca.Encryption.NONE && encryption!=Nsca.Encryption.XOR)
+            throw new IllegalArgumentException("NscaEmbeddedDaemon only decrypts NONE and XOR, not " + encryption);
+        this.encryption = encryption;
+        this.password = password==null ? new byte[0] : password.getBytes(charset);
+        this.charset = charset;
+        listen(port);
+        this.port = serverSocket.getLocalPort();
+    }
+
+    public int getPort() { return port; }
+
+    /** @param delay milliseconds to wait after accepting a connection before sending the handshake */
+    public void setHandshakeDelay(long delay) { handshakeDelay = delay; }
+
+    /** @param delay milliseconds to wait before reading each packet, which eventually blocks the sender's writes */
+    public void setPacketDelay(long delay) { packetDelay = delay; }
+
+    /** @param packets number of packets after which each connection is closed by the daemon; 0 never closes them */
+    public void setDropAfter(int packets) { dropAfter = packets; }
+
+    /** @param limit maximum number of results kept for {@link #getResults()} */
+    public void setRecordLimit(int limit) { recordLimit = limit; }
+
+    public void setListener(Listener listener) { this.listener = listener; }
+
+    /** Stops or resumes listening, so that connects are refused by the operating system rather than timing out */
+    public synchronized void setRefusing(boolean refusing) throws IOException {
+        if (refusing && serverSocket!=null) {
+            serverSocket.close();
+            serverSocket = null;
+        } else if (!refusing && serverSocket==null && !closed) {
+            listen(port);
+        }
+    }
+
+    /** Closes every open connection, as a daemon restart would */
+    public void disconnectAll() {
+        for (Socket socket : connections)
+            closeQuietly(socket);
+    }
+
+    /** @return results recorded so far, oldest first */
+    public List<Result> getResults() { return new ArrayList<Result>(results); }
+
+    /** Forgets the recorded results and resets the counters */
+    public void clear() {
+        results.clear();
+        recorded.set(0);
+        received.set(0);
+        corrupt.set(0);
+    }
+
+    /** @return number of valid packets received */
+    public long getReceivedCount() { return received.get(); }
+
+    /** @return number of packets whose CRC did not match, usually because of a wrong password or encryption method */
+    public long getCorruptCount() { return corrupt.get(); }
+
+    /** @return number of connections accepted */
+    public long getConnectionCount() { return accepted.get(); }
+
+    /** Waits until at least <code>count</code> valid packets have been received
+     * @return false if the timeout expired first */
+    public boolean awaitReceived(long count, long timeoutMillis) throws InterruptedException {
+        return await(received, count, timeoutMillis);
+    }
+
+    /** Waits until at least <code>count</code> corrupt packets have been received
+     * @return false if the timeout expired first */
+    public boolean awaitCorrupt(long count, long timeoutMillis) throws InterruptedException {
+        return await(corrupt, count, timeoutMillis);
+    }
+
+    private static boolean await(AtomicLong counter, long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (counter.get() < count) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (serverSocket!=null)
+            closeQuietly(serverSocket);
+        serverSocket = null;
+        disconnectAll();
+    }
+
+    private void listen(int port) throws IOException {
+        final ServerSocket listening = new ServerSocket();
+        listening.setReuseAddress(true);
+        listening.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverSocket = listening;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() { accept(listening); }
+        }, "nsca-daemon-" + listening.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(ServerSocket listening) {
+        while (!listening.isClosed()) {
+            try {
+                final Socket socket = listening.accept();
+                accepted.incrementAndGet();
+                connections.add(socket);
+                Thread reader = new Thread(new Runnable() {
+                    public void run() { serve(socket); }
+                }, "nsca-daemon-connection");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!listening.isClosed())
+                    logger.warn("NscaEmbeddedDaemon accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            byte[] encryptionVector = new byte[NscaConnection.INITIALIZATION_VECTOR_SIZE];
+            ThreadLocalRandom.current().nextBytes(encryptionVector);
+            pause(handshakeDelay);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(encryptionVector);
+            out.writeInt((int) (System.currentTimeMillis() / 1000L));
+            out.flush();
+
+            NscaEncryptor decryptor = encryption.newEncryptor(encryptionVector, password); // NONE and XOR are symmetric
+            NscaPacketEncoder checker = new NscaPacketEncoder(3, null, null, charset); // only used to check CRCs
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] packet = new byte[Nsca.PACKET_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            int count = 0;
+            while (true) {
+                pause(packetDelay);
+                in.readFully(packet);
+                decryptor.encrypt(buffer, 0, packet.length);
+                if (!checker.isValid(buffer, 0)) {
+                    corrupt.incrementAndGet();
+                } else {
+                    record(decode(packet));
+                }
+                int limit = dropAfter;
+                if (limit > 0 && ++count >= limit)
+                    break;
+            }
+        } catch (EOFException e) {
+            // the client closed the connection
+        } catch (IOException e) {
+            // closed by disconnectAll() or close()
+        } catch (GeneralSecurityException e) {
+            logger.error("NscaEmbeddedDaemon: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /** Fields at the offsets of the version 3 packet, as laid out by NscaPacketEncoder */
+    private Result decode(byte[] packet) {
+        int timestamp = ((packet[8] & 0xff) << 24) | ((packet[9] & 0xff) << 16) | ((packet[10] & 0xff) << 8) | (packet[11] & 0xff);
+        int returnCode = (short) (((packet[12] & 0xff) << 8) | (packet[13] & 0xff));
+        return new Result(Nsca.NagiosMsgLevel.parse(returnCode), field(packet, 14, 64), field(packet, 78, 128),
+                field(packet, 206, 512), timestamp, System.nanoTime());
+    }
+
+    /** @return the zero-terminated string in the field */
+    private String field(byte[] packet, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && packet[end]!=0)
+            end++;
+        return new String(packet, offset, end - offset, charset);
+    }
+
+    private void record(Result result) {
+        received.incrementAndGet();
+        if (recorded.get() < recordLimit) {
+            recorded.incrementAndGet();
+            results.add(result);
+        }
+        Listener current = listener;
+        if (current!=null)
+            current.received(result);
+    }
+
+    private static void pause(long millis) throws InterruptedException {
+        if (millis > 0)
+            Thread.sleep(millis);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+}
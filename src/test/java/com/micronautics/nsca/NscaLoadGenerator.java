@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca;
+
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load generator for sizing thread pools and queues: drives <code>send()</code> at a fixed total rate across
+ * many channels against an {@link NscaEmbeddedDaemon}, then reports throughput, latency percentiles and loss. Latency
+ * runs from when each message was due to be sent until the daemon read it, so that a stalled sender is charged for
+ * every message it delays rather than just the one it was sending. For example:
+ * <pre>
+ * sbt "test:run-main com.micronautics.nsca.NscaLoadGenerator --channels 50 --rate 20000 --engine nio --packetDelay 1"
+ * </pre>
+ * Options, with their defaults: --channels 10, --rate 10000 (messages per second, in total), --duration 10 (seconds),
+ * --threads 4 (sending threads), --size 64 (characters per message), --engine executor, --concurrency 1,
+ * --queueCapacity 2000, --poolSize 50, --encryption none, --password "", --handshakeDelay 0, --packetDelay 0
+ * (milliseconds) and --dropAfter 0 (packets per connection). */
+public class NscaLoadGenerator {
+    private static final Map<String, String> defaults = new HashMap<String, String>();
+    static {
+        defaults.put("channels", "10");
+        defaults.put("rate", "10000");
+        defaults.put("duration", "10");
+        defaults.put("threads", "4");
+        defaults.put("size", "64");
+        defaults.put("engine", "executor");
+        defaults.put("concurrency", "1");
+        defaults.put("queueCapacity", "2000");
+        defaults.put("poolSize", "50");
+        defaults.put("encryption", "none");
+        defaults.put("password", "");
+        defaults.put("handshakeDelay", "0");
+        defaults.put("packetDelay", "0");
+        defaults.put("dropAfter", "0");
+    }
+
+    private final Map<String, String> options;
+    private final NscaHistogram latency = new NscaHistogram(null);
+    private final AtomicLong sent = new AtomicLong();
+
+    NscaLoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>(defaults);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+            if (!defaults.containsKey(name) || i + 1 >= args.length) {
+                System.err.println("Usage: NscaLoadGenerator [--option value]...; options and defaults: " + defaults);
+                System.exit(1);
+            }
+            options.put(name, args[i + 1]);
+        }
+        System.out.println(new NscaLoadGenerator(options).run());
+        System.exit(0);
+    }
+
+    private int intOption(String name) { return Integer.parseInt(options.get(name)); }
+
+    /** @return the report */
+    String run() throws Exception {
+        Nsca.Encryption encryption = options.get("encryption").equalsIgnoreCase("xor") ? Nsca.Encryption.XOR : Nsca.Encryption.NONE;
+        String password = options.get("password");
+        NscaEmbeddedDaemon daemon = new NscaEmbeddedDaemon(0, encryption, password, Charset.forName("UTF-8"));
+        daemon.setHandshakeDelay(intOption("handshakeDelay"));
+        daemon.setPacketDelay(intOption("packetDelay"));
+        daemon.setDropAfter(intOption("dropAfter"));
+        daemon.setRecordLimit(0);
+        daemon.setListener(new NscaEmbeddedDaemon.Listener() {
+            public void received(NscaEmbeddedDaemon.Result result) {
+                String output = result.getOutput();
+                int space = output.indexOf(' ');
+                if (space > 0)
+                    latency.record(result.getReceivedNanos() - Long.parseLong(output.substring(0, space)));
+            }
+        });
+
+        final Nsca[] channels = new Nsca[intOption("channels")];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new Nsca("nsca { nscaHost = localhost \n nscaPort = " + daemon.getPort() + " \n nscaService = load-" + i +
+                    " \n encryptionMethod = " + encryption.getValue() + " \n password = \"" + password + "\"" +
+                    " \n deliveryEngine = " + options.get("engine") + " \n deliveryConcurrency = " + options.get("concurrency") +
+                    " \n queueCapacity = " + options.get("queueCapacity") + " \n metricsRegistry = none" +
+                    " \n executorGroup = loadgen \n executorGroups { loadgen { threads = " + options.get("poolSize") +
+                    ", maxThreads = " + options.get("poolSize") + ", queueCapacity = 100000, keepAlive = 10 } } }");
+
+        char[] padding = new char[Math.max(0, intOption("size") - 21)]; // room for the time stamp and a space
+        Arrays.fill(padding, 'x');
+        final String suffix = " " + new String(padding);
+        final int threads = Math.max(1, intOption("threads"));
+        final long interval = TimeUnit.SECONDS.toNanos(1) * threads / Math.max(1, intOption("rate"));
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(intOption("duration"));
+        Thread[] senders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            senders[t] = new Thread(new Runnable() {
+                public void run() { produce(channels, first, threads, start + first * interval / threads, interval, end, suffix); }
+            }, "nsca-load-" + t);
+            senders[t].start();
+        }
+        for (Thread sender : senders)
+            sender.join();
+        long elapsed = System.nanoTime() - start;
+
+        for (Nsca channel : channels)
+            channel.flush(Duration.ofSeconds(30));
+        daemon.awaitReceived(sent.get(), 5000);
+        long dropped = 0;
+        long failed = 0;
+        for (Nsca channel : channels) {
+            dropped += channel.getDroppedCount();
+            failed += channel.getMetrics().getFailedCount();
+            channel.close();
+        }
+        daemon.close();
+
+        double seconds = elapsed / 1e9;
+        long received = daemon.getReceivedCount();
+        return String.format("sent %d in %.1fs (%.0f/s), received %d (%.0f/s), lost %d (dropped %d, failed %d)%n" +
+                        "latency ms: p50 %.2f p99 %.2f p999 %.2f max %.2f%n" +
+                        "connections %d, corrupt packets %d",
+                sent.get(), seconds, sent.get() / seconds, received, received / seconds, sent.get() - received, dropped, failed,
+                latency.getP50() / 1e6, latency.getP99() / 1e6, latency.getP999() / 1e6, latency.getMax() / 1e6,
+                daemon.getConnectionCount(), daemon.getCorruptCount());
+    }
+
+    /** Sends one message every <code>interval</code> nanoseconds, in turn on channels first, first + step, ...; each
+     * message starts with the time at which it was due. With more threads than channels, threads share channels. */
+    private void produce(Nsca[] channels, int first, int step, long due, long interval, long end, String suffix) {
+        first %= channels.length;
+        int next = first;
+        try {
+            for (; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                channels[next].send(Nsca.NagiosMsgLevel.OK, due + suffix);
+                sent.incrementAndGet();
+                next += step;
+                if (next >= channels.length)
+                    next = first;
+            }
+        } catch (Exception e) {
+            System.err.println(Thread.currentThread().getName() + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class NscaAggregatorTest extends WordSpec with MustMatchers {
+  "NscaPerfData" must {
+    "format fixed point numbers without rounding errors" in {
+      expect("3.3 0.0 12.000 U", "") {
+        val sb = new java.lang.StringBuilder
+        NscaPerfData.appendFixed(sb, 3.25, 1).append(' ')
+        NscaPerfData.appendFixed(sb, -0.04, 1).append(' ')
+        NscaPerfData.appendFixed(sb, 12.0, 3).append(' ')
+        NscaPerfData.appendFixed(sb, Double.NaN, 2).toString
+      }
+    }
+
+    "quote labels and leave out disabled thresholds" in {
+      expect("errors=12;5;10 'bad req''s'=1", "") {
+        val sb = new java.lang.StringBuilder
+        NscaPerfData.appendMetric(sb, "errors", 12, 5, 10).append(' ')
+        NscaPerfData.appendMetric(sb, "bad req's", 1, 0, 0).toString
+      }
+    }
+  }
+
+  "NscaAggregator" must {
+    "report each window's count with a level set by the thresholds" in {
+      val nsca = Nsca.getChannel("nsca { nscaHostname = \"127.0.0.1\", nscaPort = 1 }")
+      try {
+        val aggregator = nsca.aggregator("api", "errors", 60000, 5, 10)
+        for (i <- 1 to 12)
+          aggregator.record()
+        aggregator.due(aggregator.getLastSent + 60000)
+        expect(Nsca.NagiosMsgLevel.CRITICAL, "")(aggregator.getLevel)
+        expect("12 errors in 60.0s | errors=12;5;10 rate=0.2/s", "")(aggregator.getMessage)
+
+        aggregator.markSent(aggregator.getLastSent + 60000)
+        aggregator.record(6)
+        aggregator.due(aggregator.getLastSent + 30000)
+        expect(Nsca.NagiosMsgLevel.WARN, "")(aggregator.getLevel)
+        expect(6L, "")(aggregator.getLastCount)
+
+        aggregator.due(aggregator.getLastSent + 30000)
+        expect(Nsca.NagiosMsgLevel.OK, "")(aggregator.getLevel)
+        expect("0 errors in 30.0s | errors=0;5;10 rate=0.0/s", "")(aggregator.getMessage)
+      } finally {
+        nsca.close()
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class NscaCircuitBreakerTest extends WordSpec with MustMatchers {
+  def refused(breaker: NscaCircuitBreaker) =
+    try { breaker.beforeConnect(); false } catch { case e: CircuitOpenException => true }
+
+  "NscaCircuitBreaker" must {
+    "open after consecutive failures and fail fast" in {
+      val breaker = new NscaCircuitBreaker("test:1", 2, 60000, 60000)
+      breaker.beforeConnect()
+      breaker.onFailure()
+      expect(NscaCircuitBreaker.State.CLOSED, "")(breaker.getState)
+      breaker.beforeConnect()
+      breaker.onFailure()
+      expect(NscaCircuitBreaker.State.OPEN, "")(breaker.getState)
+      expect(true, "")(refused(breaker))
+    }
+
+    "let one probe through once the backoff has elapsed" in {
+      val breaker = new NscaCircuitBreaker("test:2", 1, 1, 1)
+      breaker.onFailure()
+      Thread.sleep(5)
+      expect(false, "")(refused(breaker))
+      expect(NscaCircuitBreaker.State.HALF_OPEN, "")(breaker.getState)
+      expect(true, "")(refused(breaker))
+      breaker.onSuccess()
+      expect(NscaCircuitBreaker.State.CLOSED, "")(breaker.getState)
+    }
+
+    "reopen when the probe fails" in {
+      val breaker = new NscaCircuitBreaker("test:3", 1, 1, 60000)
+      breaker.onFailure()
+      Thread.sleep(5)
+      breaker.beforeConnect()
+      breaker.onFailure()
+      expect(NscaCircuitBreaker.State.OPEN, "")(breaker.getState)
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+import com.micronautics.nsca.Nsca.{Encryption, NagiosMsgLevel}
+import java.nio.charset.Charset
+import java.time.Duration
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class NscaEmbeddedDaemonTest extends WordSpec with MustMatchers {
+  val utf8 = Charset.forName("UTF-8")
+
+  "NscaEmbeddedDaemon" must {
+    "decode XOR encrypted check results" in {
+      val daemon = new NscaEmbeddedDaemon(0, Encryption.XOR, "secret", utf8)
+      val nsca = new Nsca("localhost", daemon.getPort, "domainBus", Encryption.XOR, "secret")
+      nsca.send(NagiosMsgLevel.CRITICAL, "Disk full")
+      nsca.send(NagiosMsgLevel.OK, "Disk fine")
+      expect(true, "")(daemon.awaitReceived(2, 10000))
+      val results = daemon.getResults
+      expect("domainBus", "")(results.get(0).getService)
+      expect(NagiosMsgLevel.CRITICAL, "")(results.get(0).getLevel)
+      expect("Disk full", "")(results.get(0).getOutput)
+      expect(NagiosMsgLevel.OK, "")(results.get(1).getLevel)
+      expect(0L, "")(daemon.getCorruptCount)
+      nsca.close()
+      daemon.close()
+    }
+
+    "count packets encrypted with the wrong password as corrupt" in {
+      val daemon = new NscaEmbeddedDaemon(0, Encryption.XOR, "secret", utf8)
+      val nsca = new Nsca("localhost", daemon.getPort, "domainBus", Encryption.XOR, "guess")
+      nsca.send(NagiosMsgLevel.WARN, "Disk filling up")
+      nsca.flush(Duration.ofSeconds(10)) must be (true)
+      daemon.awaitCorrupt(1, 10000) must be (true)
+      expect(0L, "")(daemon.getReceivedCount)
+      expect(1L, "")(daemon.getCorruptCount)
+      nsca.close()
+      daemon.close()
+    }
+
+    "refuse connections on demand" in {
+      val daemon = new NscaEmbeddedDaemon
+      daemon.setRefusing(true)
+      val nsca = new Nsca("localhost", daemon.getPort, "domainBus")
+      expect(DeliveryResult.Status.FAILED, "")(nsca.sendAsync(NagiosMsgLevel.WARN, "Disk filling up").get.getStatus)
+      daemon.close()
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import java.nio.ByteBuffer
+import javax.crypto.Cipher
+import javax.crypto.spec.{IvParameterSpec, SecretKeySpec}
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import Nsca._
+
+class NscaEncryptorTest extends WordSpec with MustMatchers {
+  val iv = Array.tabulate[Byte](128)(i => (i * 7 + 3).toByte)
+  val password = "secret".getBytes
+  def packet = Array.tabulate[Byte](720)(i => (i * 13).toByte)
+
+  "XOR encryptor" must {
+    "match the byte-at-a-time algorithm of the NSCA daemon" in {
+      val expected = packet
+      for (i <- 0 until expected.length) expected(i) = (expected(i) ^ iv(i % iv.length) ^ password(i % password.length)).toByte
+      val actual = packet
+      Encryption.XOR.newEncryptor(iv, password).encrypt(ByteBuffer.wrap(actual), 0, actual.length)
+      expect(expected.toList, "")(actual.toList)
+    }
+  }
+
+  "RIJNDAEL-128 encryptor" must {
+    "carry its CFB state from one packet to the next" in {
+      val encryptor = Encryption.RIJNDAEL_128.newEncryptor(iv, password)
+      val first = packet
+      val second = packet
+      encryptor.encrypt(ByteBuffer.wrap(first), 0, first.length)
+      encryptor.encrypt(ByteBuffer.wrap(second), 0, second.length)
+      first.toList must not equal (second.toList)
+
+      val key = new Array[Byte](32)
+      System.arraycopy(password, 0, key, 0, password.length)
+      val decryptor = Cipher.getInstance("AES/CFB8/NoPadding")
+      decryptor.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv, 0, 16))
+      expect(packet.toList, "")(decryptor.update(first).toList)
+      expect(packet.toList, "")(decryptor.update(second).toList)
+    }
+  }
+
+  "Unsupported encryption methods" must {
+    "be rejected when the channel is created" in {
+      evaluating { new Nsca("localhost", 5667, "service", Encryption.RIJNDAEL_256, "secret") } must produce [java.security.GeneralSecurityException]
+    }
+  }
+}
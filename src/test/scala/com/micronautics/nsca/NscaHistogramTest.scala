@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class NscaHistogramTest extends WordSpec with MustMatchers {
+  "NscaHistogram" must {
+    "report percentiles within the bucket precision" in {
+      val histogram = new NscaHistogram(null)
+      for (i <- 1 to 1000)
+        histogram.record(i * 1000L)
+      expect(1000L, "")(histogram.getCount)
+      expect(1000000L, "")(histogram.getMax)
+      histogram.getP50 must (be >= 500000L and be <= 520000L)
+      histogram.getP99 must (be >= 990000L and be <= 1000000L)
+      histogram.getMean must (be > 500000.0 and be < 501000.0)
+    }
+
+    "cover the whole range of long values" in {
+      expect(0, "")(NscaHistogram.indexOf(0))
+      expect(Long.MaxValue, "")(NscaHistogram.highestValueAt(NscaHistogram.indexOf(Long.MaxValue)))
+      for (value <- List(31L, 32L, 1000L, 123456789L, 1L << 40))
+        NscaHistogram.highestValueAt(NscaHistogram.indexOf(value)) must (be >= value and be <= value + value / 32)
+    }
+
+    "record into its parent" in {
+      val parent = new NscaHistogram(null)
+      val child = new NscaHistogram(parent)
+      child.record(42)
+      expect(1L, "")(parent.getCount)
+      expect(42L, "")(parent.getMax)
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.util.zip.CRC32
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import Nsca._
+
+class NscaPacketEncoderTest extends WordSpec with MustMatchers {
+  val encoder = new NscaPacketEncoder(3, "reporter", "service", Charset.forName("UTF-8"))
+
+  def encode(message: String): Array[Byte] = {
+    val buffer = ByteBuffer.allocate(NscaPacketEncoder.PACKET_SIZE)
+    encoder.encode(NagiosMsgLevel.CRITICAL, message, 0x01020304, buffer)
+    expect(NscaPacketEncoder.PACKET_SIZE, "")(buffer.position)
+    buffer.array
+  }
+
+  def string(packet: Array[Byte], offset: Int, length: Int) =
+    new String(packet.slice(offset, offset + length).takeWhile(_ != 0), "UTF-8")
+
+  "NscaPacketEncoder" must {
+    "lay out the header and strings" in {
+      val packet = encode("Your pants are on fire!")
+      expect(3, "")(packet(1))
+      expect(List[Byte](1, 2, 3, 4), "")(packet.slice(8, 12).toList)
+      expect(2, "")(packet(13))
+      expect("reporter", "")(string(packet, 14, 64))
+      expect("service", "")(string(packet, 78, 128))
+      expect("Your pants are on fire!", "")(string(packet, 206, 512))
+    }
+
+    "compute the crc with zeroes in the crc field" in {
+      val packet = encode("crc")
+      val expected = ByteBuffer.wrap(packet, 4, 4).getInt & 0xffffffffL
+      packet(4) = 0; packet(5) = 0; packet(6) = 0; packet(7) = 0
+      val crc = new CRC32
+      crc.update(packet)
+      expect(expected, "")(crc.getValue)
+    }
+
+    "remove line feeds and truncate long messages" in {
+      expect("line oneline two", "")(string(encode("line one\nline two"), 206, 512))
+      expect(512, "")(string(encode("x" * 600), 206, 512).length)
+      expect("éé", "")(string(encode("é\né"), 206, 512))
+    }
+
+    "restamp a packet and detect corruption" in {
+      val buffer = ByteBuffer.wrap(encode("spooled"))
+      encoder.restamp(buffer, 0, 0x05060708)
+      expect(List[Byte](5, 6, 7, 8), "")(buffer.array.slice(8, 12).toList)
+      expect(true, "")(encoder.isValid(buffer, 0))
+      buffer.array()(300) = 1
+      expect(false, "")(encoder.isValid(buffer, 0))
+    }
+
+    "not leak a longer message into the next packet" in {
+      encode("a much longer message than the next one")
+      expect("short", "")(string(encode("short"), 206, 512))
+    }
+  }
+}
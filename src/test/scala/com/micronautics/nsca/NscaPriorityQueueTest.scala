@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import Nsca._
+
+class NscaPriorityQueueTest extends WordSpec with MustMatchers {
+  def queue(starvationLimit: Int) =
+    new NscaPriorityQueue(Array.fill(NagiosMsgLevel.values.length)(16), OverflowPolicy.DROP_NEWEST, 0, starvationLimit)
+
+  def drain(queue: NscaPriorityQueue, max: Int): List[String] = {
+    val batch = new NscaBatch(16)
+    queue.drainTo(batch, max)
+    (0 until batch.size).map(batch.getMessage(_)).toList
+  }
+
+  "NscaPriorityQueue" must {
+    "deliver CRITICAL ahead of a backlog of OK" in {
+      val q = queue(100)
+      for (i <- 1 to 10) q.offer(NagiosMsgLevel.OK, "ok" + i, null)
+      q.offer(NagiosMsgLevel.CRITICAL, "critical", null)
+      expect(List("critical"), "")(drain(q, 1))
+      expect(10, "")(q.size(NagiosMsgLevel.OK))
+    }
+
+    "keep the order in which messages were sent within a batch" in {
+      val q = queue(100)
+      q.offer(NagiosMsgLevel.OK, "ok", null)
+      q.offer(NagiosMsgLevel.WARN, "warn", null)
+      q.offer(NagiosMsgLevel.CRITICAL, "critical", null)
+      expect(List("ok", "warn", "critical"), "")(drain(q, 3))
+    }
+
+    "serve a starved lane" in {
+      val q = queue(2)
+      q.offer(NagiosMsgLevel.OK, "ok", null)
+      for (i <- 1 to 3) q.offer(NagiosMsgLevel.CRITICAL, "critical" + i, null)
+      expect(List("critical1"), "")(drain(q, 1))
+      expect(List("critical2"), "")(drain(q, 1))
+      expect(List("ok"), "")(drain(q, 1))
+      expect(List("critical3"), "")(drain(q, 1))
+    }
+  }
+}
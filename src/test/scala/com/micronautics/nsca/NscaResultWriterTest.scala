@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+import com.micronautics.nsca.Nsca.NagiosMsgLevel
+import java.io.{BufferedReader, File, FileReader}
+import java.nio.file.Files
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class NscaResultWriterTest extends WordSpec with MustMatchers {
+  def channel(settings: String) =
+    new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n metricsRegistry = none \n " + settings + " }")
+
+  "The command file transport" must {
+    "append external commands to the command file" in {
+      val file = Files.createTempFile("nagios", ".cmd").toFile
+      val nsca = channel("transport = commandFile \n commandFile = \"" + file.getPath + "\"")
+      expect(Nsca.Transport.COMMAND_FILE, "")(nsca.getTransport)
+      nsca.send(NagiosMsgLevel.CRITICAL, "Disk full\non /var")
+      nsca.send(NagiosMsgLevel.OK, "Disk fine")
+      nsca.flush(java.time.Duration.ofSeconds(10)) must be (true)
+      val lines = Files.readAllLines(file.toPath)
+      expect(2, "")(lines.size)
+      lines.get(0) must endWith ("] PROCESS_SERVICE_CHECK_RESULT;" + nsca.getReportingHost + ";domainBus;2;Disk full\\non /var")
+      lines.get(1) must endWith (";domainBus;0;Disk fine")
+    }
+
+    "write to a named pipe" in {
+      val dir = Files.createTempDirectory("nagios").toFile
+      val fifo = new File(dir, "nagios.cmd")
+      if (new ProcessBuilder("mkfifo", fifo.getPath).start.waitFor==0) {
+        val nsca = channel("transport = commandFile \n commandFile = \"" + fifo.getPath + "\"")
+        val result = nsca.sendAsync(NagiosMsgLevel.WARN, "Disk filling up")
+        val reader = new BufferedReader(new FileReader(fifo))
+        reader.readLine must endWith (";domainBus;1;Disk filling up")
+        expect(DeliveryResult.Status.DELIVERED, "")(result.get.getStatus)
+        nsca.close()
+        reader.close()
+      }
+    }
+
+    "switch to a named pipe that Nagios recreated" in {
+      val dir = Files.createTempDirectory("nagios").toFile
+      val fifo = new File(dir, "nagios.cmd")
+      if (new ProcessBuilder("mkfifo", fifo.getPath).start.waitFor==0) {
+        val nsca = channel("transport = commandFile \n commandFile = \"" + fifo.getPath + "\"")
+        val first = nsca.sendAsync(NagiosMsgLevel.WARN, "Disk filling up")
+        val oldReader = new BufferedReader(new FileReader(fifo))
+        oldReader.readLine must endWith (";domainBus;1;Disk filling up")
+        expect(DeliveryResult.Status.DELIVERED, "")(first.get.getStatus)
+        fifo.delete()
+        expect(0, "")(new ProcessBuilder("mkfifo", fifo.getPath).start.waitFor)
+        val second = nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Disk full")
+        val newReader = new BufferedReader(new FileReader(fifo))
+        newReader.readLine must endWith (";domainBus;2;Disk full")
+        expect(DeliveryResult.Status.DELIVERED, "")(second.get.getStatus)
+        nsca.close()
+        oldReader.close()
+        newReader.close()
+      }
+    }
+
+    "fail when there is no command file" in {
+      val nsca = channel("transport = commandFile \n commandFile = /nonexistent/nagios.cmd")
+      expect(DeliveryResult.Status.FAILED, "")(nsca.sendAsync(NagiosMsgLevel.WARN, "Disk filling up").get.getStatus)
+    }
+  }
+
+  "The check result directory transport" must {
+    "write a check result file and its ok file" in {
+      val dir = Files.createTempDirectory("checkresults").toFile
+      val nsca = channel("transport = checkResultDir \n checkResultDirectory = \"" + dir.getPath + "\"")
+      expect(DeliveryResult.Status.DELIVERED, "")(nsca.sendAsync(NagiosMsgLevel.WARN, "Disk filling up").get.getStatus)
+      val results = dir.listFiles.filter(!_.getName.endsWith(".ok"))
+      expect(1, "")(results.length)
+      results(0).getName must fullyMatch regex ("c[A-Za-z0-9]{6}")
+      new File(dir, results(0).getName + ".ok").exists must be (true)
+      val contents = new String(Files.readAllBytes(results(0).toPath), "UTF-8")
+      contents must include ("service_description=domainBus\n")
+      contents must include ("return_code=1\noutput=Disk filling up\n")
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Bookish, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.nsca
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import Nsca._
+
+class NscaRingBufferTest extends WordSpec with MustMatchers {
+  def fill(policy: OverflowPolicy, messages: String*): (NscaRingBuffer, List[String]) = {
+    val ring = new NscaRingBuffer(4, policy, 10)
+    messages.foreach(ring.offer(NagiosMsgLevel.WARN, _, null))
+    val batch = new NscaBatch(16)
+    ring.drainTo(batch, 16)
+    (ring, (0 until batch.size).map(batch.getMessage(_)).toList)
+  }
+
+  "NscaRingBuffer" must {
+    "round its capacity up to a power of two" in {
+      expect(2048, "")(new NscaRingBuffer(2000, OverflowPolicy.DROP_NEWEST, 0).capacity)
+    }
+
+    "deliver messages in order" in {
+      expect(List("a", "b", "c"), "")(fill(OverflowPolicy.DROP_NEWEST, "a", "b", "c")._2)
+    }
+
+    "drop the newest message when full" in {
+      val (ring, messages) = fill(OverflowPolicy.DROP_NEWEST, "a", "b", "c", "d", "e", "f")
+      expect(List("a", "b", "c", "d"), "")(messages)
+      expect(2L, "")(ring.getDroppedCount)
+    }
+
+    "drop the oldest message when full" in {
+      val (ring, messages) = fill(OverflowPolicy.DROP_OLDEST, "a", "b", "c", "d", "e", "f")
+      expect(List("c", "d", "e", "f"), "")(messages)
+      expect(2L, "")(ring.getDroppedCount)
+    }
+
+    "give up after the block timeout when full" in {
+      val (ring, messages) = fill(OverflowPolicy.BLOCK, "a", "b", "c", "d", "e")
+      expect(List("a", "b", "c", "d"), "")(messages)
+      expect(1L, "")(ring.getDroppedCount)
+    }
+
+    "keep the latest overflowing message of each level" in {
+      val (ring, messages) = fill(OverflowPolicy.OVERWRITE, "a", "b", "c", "d", "e", "f")
+      expect(List("a", "b", "c", "d", "f"), "")(messages)
+      expect(1L, "")(ring.getDroppedCount)
+      expect(0, "")(ring.size)
+    }
+
+    "keep overflowing messages of different services apart" in {
+      val ring = new NscaRingBuffer(2, OverflowPolicy.OVERWRITE, 10)
+      List("a", "b", "c").foreach(ring.offer(NagiosMsgLevel.WARN, _, null))
+      ring.offer(NagiosMsgLevel.WARN, "database".getBytes("UTF-8"), "d", null)
+      ring.offer(NagiosMsgLevel.WARN, "database".getBytes("UTF-8"), "e", null)
+      val batch = new NscaBatch(16)
+      ring.drainTo(batch, 16)
+      expect(Set("a", "b", "c", "e"), "")((0 until batch.size).map(batch.getMessage(_)).toSet)
+      expect(1L, "")(ring.getDroppedCount)
+    }
+  }
+}
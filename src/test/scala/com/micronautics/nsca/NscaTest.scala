@@ -58,6 +58,26 @@ class NscaTest extends WordSpec with MustMatchers {
       expect(5667, "")(nsca.getNscaPort)
     }
 
+    "substitute nested class names literally" in {
+      class Nested
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = \"%className% at 100%\" }", classOf[Nested])
+      nsca.getNscaService must startWith ("NscaTest$")
+      nsca.getNscaService must endWith ("Nested at 100%")
+    }
+
+    "share one channel among callers with identical settings" in {
+      val first = Nsca.getChannel("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = shared }")
+      val second = Nsca.getChannel("nsca { nscaService = shared \n nscaHost = localhost \n nscaPort = 1 }")
+      val other = Nsca.getChannel("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = notShared }")
+      (first eq second) must be (true)
+      (first eq other) must be (false)
+      first.close()
+      (Nsca.getChannel("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = shared }") eq first) must be (true)
+      first.close()
+      second.close()
+      (Nsca.getChannel("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = shared }") eq first) must be (false)
+    }
+
     "point to arbitrary HOCON file" in {
       val contents = Nsca.getFileContents("application.conf")
       val nsca = new Nsca(contents, this.getClass)
@@ -67,20 +87,136 @@ class NscaTest extends WordSpec with MustMatchers {
       expect(9876, "")(nsca.getNscaPort)
     }
 
+    "read connection settings from HOCON string" in {
+      val nsca = new Nsca("nsca { nscaService = domainBus \n connectionIdleTimeout = 1234 \n connectionMaxAge = 5678 }")
+      expect(1234L, "")(nsca.getConnectionIdleTimeout)
+      expect(5678L, "")(nsca.getConnectionMaxAge)
+    }
+
+    "read batching settings from HOCON string" in {
+      val nsca = new Nsca("nsca { nscaService = domainBus \n queueCapacity = 10 \n batchMaxCount = 20 \n batchMaxBytes = 1440 \n batchLinger = 5 }")
+      expect(10, "")(nsca.getQueueCapacity)
+      expect(20, "")(nsca.getBatchMaxCount)
+      expect(1440, "")(nsca.getBatchMaxBytes)
+      expect(5L, "")(nsca.getBatchLinger)
+    }
+
+    "read the server list from HOCON string" in {
+      val nsca = new Nsca("nsca { nscaPort = 5668 \n nscaService = domainBus \n nscaServers = [ \"nagios1\", \"nagios2:5669\" ] \n loadBalancing = leastOutstanding }")
+      expect("nagios1:5668,nagios2:5669", "")(nsca.getNscaServers)
+      expect(LoadBalancing.LEAST_OUTSTANDING, "")(nsca.getLoadBalancing)
+      expect("localhost:5667", "")(new Nsca("nsca { nscaService = domainBus }").getNscaServers)
+    }
+
+    "select an executor group from HOCON string" in {
+      expect("default", "")(new Nsca("nsca { nscaService = domainBus }").getExecutorGroup)
+      val nsca = new Nsca("nsca { nscaService = domainBus \n executorGroup = critical \n executorGroups { critical { threads = 2 } } }")
+      expect("critical", "")(nsca.getExecutorGroup)
+      expect(2, "")(NscaExecutorGroup.get("critical", 0, 0, 1, 0).getExecutor.getCorePoolSize)
+    }
+
+    "select the delivery engine from HOCON string" in {
+      expect(DeliveryEngine.EXECUTOR, "")(new Nsca("nsca { nscaService = domainBus }").getDeliveryEngine)
+      expect(DeliveryEngine.NIO, "")(new Nsca("nsca { nscaService = domainBus \n deliveryEngine = nio }").getDeliveryEngine)
+    }
+
+    "fall back to the executor engine when virtual threads are unavailable" in {
+      val nsca = new Nsca("nsca { nscaService = domainBus \n deliveryEngine = virtual \n deliveryConcurrency = 4 }")
+      val supported = classOf[java.util.concurrent.Executors].getMethods.exists(_.getName == "newVirtualThreadPerTaskExecutor")
+      val expected = if (supported) DeliveryEngine.VIRTUAL else DeliveryEngine.EXECUTOR
+      expect(expected, "")(nsca.getDeliveryEngine)
+      expect(4, "")(nsca.getDeliveryConcurrency)
+    }
+
+    "spool messages that cannot be delivered" in {
+      val dir = java.nio.file.Files.createTempDirectory("nsca-spool").toFile
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n spoolDirectory = \"" +
+        dir.getPath + "\" \n spoolReplayInterval = 60000 }")
+      expect(DeliveryResult.Status.SPOOLED, "")(nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Disk full").get.getStatus)
+      expect(1L, "")(nsca.getSpooledCount)
+      expect(true, "")(nsca.getSpoolDirectory.list.exists(_.endsWith(".spool")))
+    }
+
+    "release its spool directory when closed" in {
+      val dir = java.nio.file.Files.createTempDirectory("nsca-spool").toFile
+      val conf = "nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n spoolDirectory = \"" +
+        dir.getPath + "\" \n spoolReplayInterval = 60000 }"
+      val nsca = new Nsca(conf)
+      nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Disk full").get
+      nsca.close()
+      val reopened = new Nsca(conf)
+      expect(1L, "")(reopened.getSpooledCount)
+      reopened.close()
+    }
+
+    "keep heartbeat state up to date" in {
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n heartbeatTick = 50 }")
+      val own = nsca.heartbeat(NagiosMsgLevel.OK, "alive", 60000)
+      val other = nsca.heartbeat("database", NagiosMsgLevel.OK, "connected", 60000)
+      nsca.send(NagiosMsgLevel.WARN, "slow")
+      expect(NagiosMsgLevel.WARN, "")(own.getLevel)
+      expect("slow", "")(own.getMessage)
+      expect("database", "")(other.getService)
+      expect(NagiosMsgLevel.OK, "")(other.getLevel)
+      other.update(NagiosMsgLevel.CRITICAL, "disconnected")
+      expect("disconnected", "")(other.getMessage)
+      nsca.heartbeat(NagiosMsgLevel.OK, "alive again", 60000)
+      expect(true, "")(own.isCancelled)
+      nsca.close()
+      expect(true, "")(other.isCancelled)
+    }
+
+    "count messages in its metrics" in {
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n metricsRegistry = none }")
+      val global = NscaMetrics.getGlobal.getFailedCount
+      expect(DeliveryResult.Status.FAILED, "")(nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Disk full").get.getStatus)
+      expect(1L, "")(nsca.getMetrics.getEnqueuedCount)
+      expect(1L, "")(nsca.getMetrics.getFailedCount)
+      expect(0L, "")(nsca.getMetrics.getSentCount)
+      expect(0L, "")(nsca.getMetrics.getQueueDepth)
+      NscaMetrics.getGlobal.getFailedCount must be >= (global + 1)
+    }
+
+    "coalesce repeated messages" in {
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n coalesceWindow = 60000 }")
+      for (i <- 1 to 10)
+        nsca.send(NagiosMsgLevel.CRITICAL, "Disk full")
+      nsca.send(NagiosMsgLevel.WARN, "Disk full")
+      expect(9L, "")(nsca.getCoalescedCount)
+      expect(DeliveryResult.Status.COALESCED, "")(nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Disk full").get.getStatus)
+    }
+
+    "forward level transitions only" in {
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 1 \n nscaService = domainBus \n coalesceTransitionsOnly = true }")
+      nsca.send(NagiosMsgLevel.OK, "fine")
+      nsca.send(NagiosMsgLevel.OK, "still fine")
+      nsca.send(NagiosMsgLevel.CRITICAL, "broken")
+      nsca.send(NagiosMsgLevel.OK, "fine again")
+      expect(1L, "")(nsca.getCoalescedCount)
+    }
+
     "respond to HOCON string" in {
-      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = 5667 \n nscaService = domainBus }");
+      val daemon = new NscaEmbeddedDaemon
+      val nsca = new Nsca("nsca { nscaHost = localhost \n nscaPort = " + daemon.getPort + " \n nscaService = domainBus }");
       expect("domainBus", "")(nsca.getNscaService)
       expect(Encryption.NONE, "")(nsca.getEncryptionMethod)
       expect("localhost", "")(nsca.getNscaHost)
-      expect(5667, "")(nsca.getNscaPort)
+      expect(daemon.getPort, "")(nsca.getNscaPort)
 
-      nsca.send(NagiosMsgLevel.UNKNOWN, "What's going on?")
-      Thread.sleep(10000)
-      nsca.send(NagiosMsgLevel.CRITICAL, "Test critical message")
-      Thread.sleep(10000)
-      nsca.send(NagiosMsgLevel.WARN, "Test warning message")
-      Thread.sleep(10000)
-      nsca.send(NagiosMsgLevel.OK, "Everything is peachy-keen")
+      val results = List(
+        nsca.sendAsync(NagiosMsgLevel.UNKNOWN, "What's going on?"),
+        nsca.sendAsync(NagiosMsgLevel.CRITICAL, "Test critical message"),
+        nsca.sendAsync(NagiosMsgLevel.WARN, "Test warning message"),
+        nsca.sendAsync(NagiosMsgLevel.OK, "Everything is peachy-keen"))
+      nsca.flush(java.time.Duration.ofSeconds(30)) must be (true)
+      results.foreach { result =>
+        result.isDone must be (true)
+        expect(DeliveryResult.Status.DELIVERED, "")(result.get.getStatus)
+        expect(1, "")(result.get.getAttempts)
+      }
+      daemon.awaitReceived(4, 10000) must be (true)
+      nsca.close()
+      daemon.close()
     }
   }
 }